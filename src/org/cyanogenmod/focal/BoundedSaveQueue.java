@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of pending save requests, bounded by the amount of bytes it holds rather
+ * than by a number of requests. A request holds its bytes until it is marked as
+ * done, so the ones being saved count against the limit too. Requests are sorted in lanes: user-visible shots
+ * are always taken before intermediate ones (HDR brackets, PicSphere tiles).
+ *
+ * Adding a request never blocks: when the queue is full, the overflow policy tells
+ * whether the request is refused, queued anyway, or whether older requests are
+ * dropped to make room for it. Only the consumer side (take, waitDone) may wait.
+ *
+ * Consumers are stopped with close(): the requests already queued are still taken,
+ * then take() returns null. Closing never interrupts a consumer in the middle of a
+ * request.
+ */
+public class BoundedSaveQueue<T> {
+    public final static String TAG = "BoundedSaveQueue";
+
+    // Lanes, by decreasing priority
+    public final static int LANE_USER = 0;
+    public final static int LANE_INTERMEDIATE = 1;
+    private final static int LANE_COUNT = 2;
+
+    // The new request is refused
+    public final static int OVERFLOW_REJECT = 0;
+    // The oldest requests of strictly lower priority lanes are dropped (lowest
+    // priority lane first) until the new request fits. If there's nothing left to
+    // drop, a user request is queued anyway, and an intermediate one is refused: a
+    // shot the user already took is never dropped nor refused.
+    public final static int OVERFLOW_DROP_OLDEST = 1;
+    // The new request is queued anyway, going over the limit
+    public final static int OVERFLOW_ACCEPT = 2;
+
+    public interface Listener<T> {
+        /**
+         * Called when a queued request is dropped to make room for a new one.
+         * This is called from the thread adding the new request.
+         *
+         * @param item The dropped request
+         */
+        public void onRequestDropped(T item);
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long bytes;
+
+        Entry(T item, long bytes) {
+            this.item = item;
+            this.bytes = bytes;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry<T>>[] mLanes;
+    // One permit per queued request: anyone removing a request takes a permit first
+    private final Semaphore mAvailable = new Semaphore(0);
+    private final AtomicLong mQueuedBytes = new AtomicLong(0);
+    // Requests queued or being processed, for waitDone()
+    private final AtomicInteger mPending = new AtomicInteger(0);
+    private final Object mDoneLock = new Object();
+    // Held while queueing a request or closing, so that nothing is queued once the
+    // consumers may have left
+    private final Object mCloseLock = new Object();
+    private boolean mClosed;
+    private volatile long mMaxBytes;
+    private volatile int mOverflowPolicy;
+    private volatile Listener<T> mListener;
+
+    /**
+     * @param maxBytes Amount of bytes the queue can hold
+     * @param overflowPolicy What to do when the queue is full, one of OVERFLOW_*
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedSaveQueue(long maxBytes, int overflowPolicy) {
+        mLanes = new ConcurrentLinkedQueue[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new ConcurrentLinkedQueue<Entry<T>>();
+        }
+        mMaxBytes = maxBytes;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+    }
+
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    public void setListener(Listener<T> listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return The amount of bytes held by the requests queued or being processed
+     */
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    /**
+     * Adds a request to the queue. This never blocks.
+     *
+     * @param item The request
+     * @param lane The lane of the request, LANE_USER or LANE_INTERMEDIATE
+     * @param bytes The memory held by the request
+     * @return True if the request was queued, false if it was refused or if the
+     *         queue is closed
+     */
+    public boolean offer(T item, int lane, long bytes) {
+        if (lane < 0 || lane >= LANE_COUNT) {
+            throw new IllegalArgumentException("Unknown lane " + lane);
+        }
+
+        synchronized (mCloseLock) {
+            if (mClosed) {
+                return false;
+            }
+            return queue(item, lane, bytes);
+        }
+    }
+
+    private boolean queue(T item, int lane, long bytes) {
+        final int policy = mOverflowPolicy;
+        boolean force = (policy == OVERFLOW_ACCEPT);
+        while (!reserve(bytes, force)) {
+            if (policy != OVERFLOW_DROP_OLDEST) {
+                return false;
+            }
+            if (!dropOldest(lane)) {
+                if (lane != LANE_USER) {
+                    return false;
+                }
+                force = true;
+            }
+        }
+
+        mPending.incrementAndGet();
+        mLanes[lane].add(new Entry<T>(item, bytes));
+        mAvailable.release();
+        return true;
+    }
+
+    /**
+     * Refuses new requests, and wakes up the consumers once the queued requests
+     * are taken
+     *
+     * @param consumers The number of threads calling take()
+     */
+    public void close(int consumers) {
+        synchronized (mCloseLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            // One extra permit per consumer, that finds the lanes empty
+            mAvailable.release(consumers);
+        }
+    }
+
+    /**
+     * Takes the next request to process, waiting for one if the queue is empty.
+     * Once the request is processed, done() must be called with its size.
+     *
+     * @return The request, or null if the queue is closed and empty
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        mAvailable.acquire();
+        while (true) {
+            // A permit guarantees a request in one of the lanes, even though one
+            // being dropped may hide it for a short moment
+            for (ConcurrentLinkedQueue<Entry<T>> lane : mLanes) {
+                Entry<T> entry = lane.poll();
+                if (entry != null) {
+                    return entry.item;
+                }
+            }
+            if (isClosedAndEmpty()) {
+                return null;
+            }
+            Thread.yield();
+        }
+    }
+
+    private boolean isClosedAndEmpty() {
+        synchronized (mCloseLock) {
+            if (!mClosed) {
+                return false;
+            }
+            for (ConcurrentLinkedQueue<Entry<T>> lane : mLanes) {
+                if (!lane.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Marks a request obtained from take() as processed, and releases the memory
+     * it held
+     *
+     * @param bytes The size the request was offered with
+     */
+    public void done(long bytes) {
+        mQueuedBytes.addAndGet(-bytes);
+        if (mPending.decrementAndGet() == 0) {
+            synchronized (mDoneLock) {
+                mDoneLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return True if no request is queued or being processed
+     */
+    public boolean isIdle() {
+        return mPending.get() == 0;
+    }
+
+    /**
+     * Waits until all the queued requests have been processed
+     */
+    public void waitDone() {
+        synchronized (mDoneLock) {
+            while (mPending.get() > 0) {
+                try {
+                    mDoneLock.wait();
+                } catch (InterruptedException e) {
+                    // ignore.
+                }
+            }
+        }
+    }
+
+    private boolean reserve(long bytes, boolean force) {
+        while (true) {
+            long queued = mQueuedBytes.get();
+            // A request larger than the whole queue is still accepted when the queue
+            // is empty, otherwise it could never be saved
+            if (!force && queued > 0 && queued + bytes > mMaxBytes) {
+                return false;
+            }
+            if (mQueuedBytes.compareAndSet(queued, queued + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest request of the lowest priority lane, if that lane is strictly
+     * below the given lane.
+     *
+     * @return False if there was nothing to drop
+     */
+    private boolean dropOldest(int lane) {
+        if (!mAvailable.tryAcquire()) {
+            return false;
+        }
+
+        for (int i = LANE_COUNT - 1; i > lane; i--) {
+            Entry<T> entry = mLanes[i].poll();
+            if (entry != null) {
+                Listener<T> listener = mListener;
+                if (listener != null) {
+                    listener.onRequestDropped(entry.item);
+                }
+                done(entry.bytes);
+                return true;
+            }
+        }
+
+        // Only requests of the same or higher priority lanes are queued
+        mAvailable.release();
+        return false;
+    }
+}
@@ -93,6 +93,7 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
     private CaptureTransformer mCaptureTransformer;
     private Handler mHandler;
     private boolean mPaused;
+    private int mShotsRemainingWarning;
 
     private int mOrientation = OrientationEventListener.ORIENTATION_UNKNOWN;
     private int mOrientationCompensation = 0;
@@ -168,6 +169,7 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
 
         mUserWantsExposureRing = true;
         mIsFullscreenShutter = false;
+        mShotsRemainingWarning = getResources().getInteger(R.integer.config_shotsRemainingWarning);
 
         mSideBar = (SideBar) findViewById(R.id.sidebar_scroller);
         mWidgetRenderer = (WidgetRenderer) findViewById(R.id.widgets_container);
@@ -474,6 +476,35 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
 
         // Reload pictures in the ReviewDrawer
         mReviewDrawer.updateFromGallery(newMode != CAMERA_MODE_VIDEO);
+
+        notifyShotsRemaining();
+    }
+
+    /**
+     * Tells the user how many shots of the current mode still fit on the storage,
+     * when only a few do. This only reads cached values, and can be called from
+     * any thread.
+     */
+    private void notifyShotsRemaining() {
+        int kind;
+        if (mCameraMode == CAMERA_MODE_VIDEO) {
+            return;
+        } else if (mCameraMode == CAMERA_MODE_PANO) {
+            kind = StorageMonitor.SHOT_PANO;
+        } else if (mCameraMode == CAMERA_MODE_PICSPHERE) {
+            kind = StorageMonitor.SHOT_PICSPHERE;
+        } else if (mCaptureTransformer instanceof SoftwareHdrCapture) {
+            kind = StorageMonitor.SHOT_HDR;
+        } else if (mSnapshotManager != null) {
+            kind = mSnapshotManager.getShotKind();
+        } else {
+            kind = StorageMonitor.SHOT_NORMAL;
+        }
+
+        long remaining = StorageMonitor.getSingleton().getShotsRemaining(kind);
+        if (remaining >= 0 && remaining <= mShotsRemainingWarning) {
+            mNotifier.notify(getString(R.string.shots_remaining, remaining), 2000);
+        }
     }
 
     /**
@@ -1190,6 +1221,17 @@ public class CameraActivity extends Activity implements CameraManager.CameraRead
 
         @Override
         public void onSnapshotSaved(SnapshotManager.SnapshotInfo info) {
+            notifyShotsRemaining();
+
+            if (info.mIntermediate) {
+                // Staged out of the gallery, the final picture will be added instead
+                return;
+            }
+            if (info.mUri == null) {
+                Log.e(TAG, "Snapshot saved without a MediaStore entry, not showing it");
+                return;
+            }
+
             String uriStr = info.mUri.toString();
 
             // Add the new image to the gallery and the review drawer
@@ -34,6 +34,7 @@ import android.media.MediaRecorder;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.os.Handler;
 import android.util.Log;
 import android.view.SurfaceView;
@@ -41,6 +42,7 @@ import android.view.SurfaceView;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -64,6 +66,7 @@ public class CameraManager {
     private final static int FOCUS_HEIGHT = 80;
 
     private CameraPreview mPreview;
+    private final PreviewFrameDispatcher mFrameDispatcher = new PreviewFrameDispatcher();
     private Camera mCamera;
     private boolean mCameraReady;
     private int mCurrentFacing;
@@ -72,6 +75,16 @@ public class CameraManager {
     private Camera.Parameters mParameters;
     private int mOrientation;
     private MediaRecorder mMediaRecorder;
+    // Recorder prepared in advance for the next segment of the video, if any
+    private MediaRecorder mNextMediaRecorder;
+    // File and size limit of the segments being recorded and prepared
+    private String mVideoFileName;
+    private long mVideoMaxFileSize;
+    private String mNextVideoFileName;
+    private long mNextVideoMaxFileSize;
+    private long mVideoSegmentMaxSize;
+    private int mVideoSegmentMaxDuration;
+    private VideoSegmentListener mVideoSegmentListener;
     private PreviewPauseListener mPreviewPauseListener;
     private CameraReadyListener mCameraReadyListener;
     private Handler mHandler;
@@ -81,6 +94,8 @@ public class CameraManager {
     private boolean mIsResuming;
     private CameraRenderer mRenderer;
     private boolean mIsRecordingHint;
+    private YuvConverter mYuvConverter;
+    private boolean mIsPaused;
 
     public interface PreviewPauseListener {
         /**
@@ -110,6 +125,15 @@ public class CameraManager {
         public void onCameraFailed();
     }
 
+    public interface VideoSegmentListener {
+        /**
+         * Called on the main thread when the segment being recorded reached its
+         * maximum size or duration. The recorder stopped by itself: the recording
+         * must either roll over to the next segment, or be stopped.
+         */
+        public void onVideoSegmentLimitReached();
+    }
+
     Thread mParametersThread = new Thread() {
         public void run() {
             while (true) {
@@ -253,6 +277,22 @@ public class CameraManager {
         mCameraReadyListener = listener;
     }
 
+    /**
+     * Splits the next videos in segments of limited size or duration. This must be
+     * called before prepareVideoRecording.
+     *
+     * @param maxSize Maximum size of a segment, in bytes, or 0 for no limit
+     * @param maxDuration Maximum duration of a segment, in milliseconds, or 0 for no limit
+     * @param listener Listener notified when a segment reaches its limit, or null to
+     *                 record videos in a single segment
+     */
+    public void setVideoSegmentListener(long maxSize, int maxDuration,
+                                        VideoSegmentListener listener) {
+        mVideoSegmentMaxSize = maxSize;
+        mVideoSegmentMaxDuration = maxDuration;
+        mVideoSegmentListener = listener;
+    }
+
     /**
      * Returns the preview surface used to display the Camera's preview
      *
@@ -303,12 +343,27 @@ public class CameraManager {
 
     public void pause() {
         mPreview.setPauseCopyFrame(true);
+        mFrameDispatcher.pause();
         releaseCamera();
+
+        synchronized (this) {
+            mIsPaused = true;
+            if (mYuvConverter != null) {
+                mYuvConverter.release();
+                mYuvConverter = null;
+            }
+        }
+        YuvDecoder.getBufferPool().clear();
         //mParametersThread.interrupt();
     }
 
     public void resume() {
         mIsResuming = true;
+        synchronized (this) {
+            mIsPaused = false;
+        }
+        getYuvConverter();
+        mFrameDispatcher.resume();
         reconnectToCamera();
         //mParametersThread.start();
     }
@@ -417,14 +472,34 @@ public class CameraManager {
         }.start();
     }
 
+    /**
+     * Registers a consumer of the preview frames. Frames are delivered on a worker
+     * thread dedicated to the consumer; if it is still busy when new frames arrive,
+     * the older ones are dropped so that the preview is never slowed down.
+     *
+     * @param consumer The consumer
+     * @return The worker of the consumer, which counts delivered and dropped frames
+     */
+    public PreviewFrameDispatcher.Worker addPreviewFrameConsumer(
+            PreviewFrameDispatcher.Consumer consumer) {
+        return mFrameDispatcher.addConsumer(consumer);
+    }
+
+    /**
+     * Unregisters a consumer of the preview frames
+     *
+     * @param consumer The consumer
+     */
+    public void removePreviewFrameConsumer(PreviewFrameDispatcher.Consumer consumer) {
+        mFrameDispatcher.removeConsumer(consumer);
+    }
+
     /**
      * Returns the last frame of the preview surface
      *
      * @return Bitmap
      */
     public Bitmap getLastPreviewFrame() {
-        // Decode the last frame bytes
-        byte[] data = mPreview.getLastFrameBytes();
         Camera.Parameters params = getParameters();
 
         if (params == null) {
@@ -440,8 +515,16 @@ public class CameraManager {
         int previewHeight = previewSize.height;
 
         // Convert YUV420SP preview data to RGB
-        if (data != null && data.length > 8) {
-            Bitmap bitmap = Util.decodeYUV420SP(mContext, data, previewWidth, previewHeight);
+        PreviewFrameRing.Frame frame = mPreview.acquireLastFrame();
+        if (frame != null) {
+            Bitmap bitmap;
+            try {
+                bitmap = Util.decodeYUV420SP(getYuvConverter(), frame.getData(),
+                        previewWidth, previewHeight);
+            } finally {
+                frame.release();
+            }
+
             if (mCurrentFacing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
                 // Frontcam has the image flipped, flip it back to not look weird in portrait
                 Matrix m = new Matrix();
@@ -458,6 +541,92 @@ public class CameraManager {
         }
     }
 
+    /**
+     * Returns a downscaled version of the last frame of the preview surface. The
+     * frame is decoded, mirrored (for the front camera) and subsampled in a single
+     * pass, so the full resolution frame never exists as a Bitmap.
+     *
+     * @param maxSize The largest dimension the thumbnail should have. The frame is
+     *                subsampled by an integer factor, so the thumbnail may be
+     *                slightly larger.
+     * @return Bitmap
+     */
+    public Bitmap getLastPreviewThumbnail(int maxSize) {
+        Camera.Parameters params = getParameters();
+
+        if (params == null) {
+            return null;
+        }
+
+        Camera.Size previewSize = params.getPreviewSize();
+        if (previewSize == null) {
+            return null;
+        }
+
+        PreviewFrameRing.Frame frame = mPreview.acquireLastFrame();
+        if (frame == null) {
+            return null;
+        }
+
+        final int previewWidth = previewSize.width;
+        final int previewHeight = previewSize.height;
+        final int scale = Math.max(1, Math.max(previewWidth, previewHeight) / maxSize);
+        final int width = YuvDecoder.getScaledSize(previewWidth, scale);
+        final int height = YuvDecoder.getScaledSize(previewHeight, scale);
+
+        // Frontcam has the image flipped, flip it back to not look weird in portrait
+        YuvDecoder.BufferPool pool = YuvDecoder.getBufferPool();
+        int[] argb = pool.acquire(width, height);
+        try {
+            YuvDecoder.decodeNV21Scaled(frame.getData(), previewWidth, previewHeight, scale,
+                    mCurrentFacing == Camera.CameraInfo.CAMERA_FACING_FRONT, argb);
+        } finally {
+            frame.release();
+        }
+        Bitmap bitmap = Bitmap.createBitmap(argb, width, height, Bitmap.Config.ARGB_8888);
+        pool.release(argb);
+
+        // Views showing the thumbnail at its intrinsic size keep the size they had
+        // with the full resolution frame
+        bitmap.setDensity(mContext.getResources().getDisplayMetrics().densityDpi / scale);
+
+        return bitmap;
+    }
+
+    /**
+     * Returns the converter used for preview frames. It is kept while the camera
+     * is running, and released in pause(). While paused, a CPU converter is
+     * returned instead so that nothing is left to release.
+     *
+     * @return YuvConverter
+     */
+    public synchronized YuvConverter getYuvConverter() {
+        if (mIsPaused) {
+            return new JavaYuvConverter();
+        }
+        if (mYuvConverter == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                mYuvConverter = new RenderScriptYuvConverter(mContext);
+            } else {
+                mYuvConverter = new JavaYuvConverter();
+            }
+        }
+
+        return mYuvConverter;
+    }
+
+    /**
+     * Overrides the converter used for preview frames
+     *
+     * @param converter The converter to use from now on
+     */
+    public synchronized void setYuvConverter(YuvConverter converter) {
+        if (mYuvConverter != null && mYuvConverter != converter) {
+            mYuvConverter.release();
+        }
+        mYuvConverter = converter;
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -511,30 +680,160 @@ public class CameraManager {
         // Unlock the camera for use with MediaRecorder
         mCamera.unlock();
 
-        mMediaRecorder.setCamera(mCamera);
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
-        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+        long maxFileSize = getVideoMaxFileSize(StorageMonitor.getSingleton().refresh());
+        configureRecorder(mMediaRecorder, fileName, profile, maxFileSize);
+        mVideoFileName = fileName;
+        mVideoMaxFileSize = maxFileSize;
+
+        mPreview.postCallbackBuffer();
+    }
+
+    /**
+     * Prepares a second MediaRecorder for the next segment of the video being
+     * recorded, so that rolling over to it only takes a stop and a start.
+     *
+     * @param fileName Target file path of the next segment
+     * @param profile  Target profile (quality)
+     * @return True if the recorder is ready
+     */
+    public boolean prepareNextVideoSegment(String fileName, CamcorderProfile profile) {
+        cancelNextVideoSegment();
+
+        // The segment being recorded keeps taking space until it reaches its own
+        // limit: only what it may still write on top of the current free space
+        // is left for the next one
+        long availableSpace = StorageMonitor.getSingleton().refresh();
+        if (availableSpace >= 0 && mVideoFileName != null && mVideoMaxFileSize > 0) {
+            long written = new File(mVideoFileName).length();
+            availableSpace -= Math.max(0, mVideoMaxFileSize - written);
+        }
+
+        long maxFileSize = getVideoMaxFileSize(availableSpace);
+        if (availableSpace >= 0 && maxFileSize <= 0) {
+            // A limit of 0 or less would mean no limit at all
+            Log.w(TAG, "Not enough space left for another video segment");
+            return false;
+        }
+
+        MediaRecorder recorder = new MediaRecorder();
+        if (!configureRecorder(recorder, fileName, profile, maxFileSize)) {
+            recorder.release();
+            return false;
+        }
+
+        mNextMediaRecorder = recorder;
+        mNextVideoFileName = fileName;
+        mNextVideoMaxFileSize = maxFileSize;
+        return true;
+    }
+
+    /**
+     * Releases the recorder prepared for the next segment, if any
+     */
+    public void cancelNextVideoSegment() {
+        if (mNextMediaRecorder != null) {
+            mNextMediaRecorder.reset();
+            mNextMediaRecorder.release();
+            mNextMediaRecorder = null;
+        }
+    }
+
+    /**
+     * Starts recording the next segment prepared with prepareNextVideoSegment. The
+     * recorder of the previous segment is stopped and released first: it stops by
+     * itself once it reaches its limit, but asynchronously, and the next one can't
+     * share the camera with it.
+     *
+     * @return True if the next segment is recording. Otherwise the recording is over:
+     *         the previous segment is complete, and stopVideoRecording must be called.
+     */
+    public boolean rolloverVideoRecording() {
+        Log.v(TAG, "rolloverVideoRecording");
+
+        // Waits until the file of the previous segment is complete
+        try {
+            mMediaRecorder.stop();
+        } catch (Exception e) {
+            // It usually stopped by itself already
+        }
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+
+        if (mNextMediaRecorder == null) {
+            // Keep a recorder for stopVideoRecording and the next recordings
+            mMediaRecorder = new MediaRecorder();
+            return false;
+        }
 
+        mMediaRecorder = mNextMediaRecorder;
+        mNextMediaRecorder = null;
+        mVideoFileName = mNextVideoFileName;
+        mVideoMaxFileSize = mNextVideoMaxFileSize;
 
-        mMediaRecorder.setProfile(profile);
-        mMediaRecorder.setOutputFile(fileName);
+        try {
+            mMediaRecorder.start();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot start the next video segment", e);
+            mMediaRecorder.reset();
+            mMediaRecorder.release();
+            mMediaRecorder = new MediaRecorder();
+            return false;
+        }
+        return true;
+    }
+
+    private long getVideoMaxFileSize(long availableSpace) {
+        long maxFileSize = availableSpace - Storage.LOW_STORAGE_THRESHOLD;
+        if (mVideoSegmentListener != null && mVideoSegmentMaxSize > 0) {
+            maxFileSize = Math.min(maxFileSize, mVideoSegmentMaxSize);
+        }
+        return maxFileSize;
+    }
+
+    private boolean configureRecorder(MediaRecorder recorder, String fileName,
+                                      CamcorderProfile profile, long maxFileSize) {
+        recorder.setCamera(mCamera);
+        recorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
+        recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+
+
+        recorder.setProfile(profile);
+        recorder.setOutputFile(fileName);
         // Set maximum file size.
-        long maxFileSize = Storage.getStorage().getAvailableSpace()
-                - Storage.LOW_STORAGE_THRESHOLD;
-        mMediaRecorder.setMaxFileSize(maxFileSize);
-        mMediaRecorder.setMaxDuration(0); // infinite
+        recorder.setMaxFileSize(maxFileSize);
+        if (mVideoSegmentListener != null) {
+            recorder.setMaxDuration(mVideoSegmentMaxDuration);
+            recorder.setOnInfoListener(mRecorderInfoListener);
+        } else {
+            recorder.setMaxDuration(0); // infinite
+            recorder.setOnInfoListener(null);
+        }
 
         try {
-            mMediaRecorder.prepare();
+            recorder.prepare();
+            return true;
         } catch (IllegalStateException e) {
             Log.e(TAG, "Cannot prepare MediaRecorder", e);
         } catch (IOException e) {
             Log.e(TAG, "Cannot prepare MediaRecorder", e);
         }
-
-        mPreview.postCallbackBuffer();
+        return false;
     }
 
+    private MediaRecorder.OnInfoListener mRecorderInfoListener =
+            new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            if (mr != mMediaRecorder || mVideoSegmentListener == null) {
+                return;
+            }
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED
+                    || what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
+                mVideoSegmentListener.onVideoSegmentLimitReached();
+            }
+        }
+    };
+
     public void startVideoRecording() {
         Log.v(TAG, "startVideoRecording");
         mMediaRecorder.start();
@@ -917,9 +1216,16 @@ public class CameraManager {
         private final static String TAG = "CameraManager.CameraPreview";
 
         private SurfaceTexture mTexture;
-        private byte[] mLastFrameBytes;
+        private PreviewFrameRing mFrameRing;
         private boolean mPauseCopyFrame;
 
+        private PreviewFrameRing.Listener mFrameRingListener = new PreviewFrameRing.Listener() {
+            @Override
+            public void onFrameFree() {
+                queueFreeBuffers();
+            }
+        };
+
         public CameraPreview(Context context) {
             super(context);
         }
@@ -945,16 +1251,34 @@ public class CameraManager {
         }
 
         public void notifyPreviewSize(int width, int height) {
-            mLastFrameBytes = new byte[(int) (width * height * 1.5 + 0.5)];
+            mFrameRing = new PreviewFrameRing(PreviewFrameRing.DEFAULT_BUFFER_COUNT,
+                    width, height, mFrameRingListener);
+            mFrameDispatcher.setFrameRing(mFrameRing);
             requestLayout();
         }
 
-        public byte[] getLastFrameBytes() {
-            return mLastFrameBytes;
+        /**
+         * Returns the most recent complete preview frame. The caller must call
+         * release() on it once done, so that the buffer can go back to the camera.
+         *
+         * @return The last preview frame, or null if there is none yet
+         */
+        public PreviewFrameRing.Frame acquireLastFrame() {
+            PreviewFrameRing ring = mFrameRing;
+            if (ring == null) {
+                return null;
+            }
+
+            return ring.acquireLatest();
         }
 
         public void notifyCameraChanged(boolean startPreview) {
             synchronized (mParametersThread) {
+                // Buffers queued in the previous camera (or callback) are gone
+                if (mFrameRing != null) {
+                    mFrameRing.reclaimQueuedBuffers();
+                }
+
                 if (mCamera != null) {
                     if (startPreview) {
                         mCamera.stopPreview();
@@ -982,7 +1306,7 @@ public class CameraManager {
                 @Override
                 public void run() {
                     if (mCamera != null) {
-                        mCamera.addCallbackBuffer(mLastFrameBytes);
+                        queueFreeBuffers();
                         mCamera.setPreviewCallbackWithBuffer(CameraPreview.this);
                     }
                 }
@@ -1013,11 +1337,31 @@ public class CameraManager {
             }
         }
 
+        /**
+         * Hands all the free buffers of the ring to the camera
+         */
+        private void queueFreeBuffers() {
+            PreviewFrameRing ring = mFrameRing;
+            Camera camera = mCamera;
+            if (ring == null || camera == null || mPauseCopyFrame) {
+                return;
+            }
+
+            byte[] buffer;
+            while ((buffer = ring.takeFreeBuffer()) != null) {
+                camera.addCallbackBuffer(buffer);
+            }
+        }
+
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            if (mCamera != null && !mPauseCopyFrame) {
-                mCamera.addCallbackBuffer(mLastFrameBytes);
+            PreviewFrameRing ring = mFrameRing;
+            if (ring != null) {
+                ring.publish(data, System.nanoTime());
+                mFrameDispatcher.onFrameAvailable();
             }
+
+            queueFreeBuffers();
         }
     }
 
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of the captures in flight. Each stage of the save pipeline
+ * (MediaStore entry reserved, named, file being saved, done) and each render
+ * (HDR, PicSphere) is recorded as one line, with a single append to the journal
+ * file. If the process dies, the journal of the previous process is replayed on
+ * the next start: the pictures whose file was completely written are indexed,
+ * and the other entries are rolled back (MediaStore rows and temporary files
+ * deleted), as well as the temporary directories of the renders.
+ *
+ * Appends are not synced to the storage: the journal survives the death of the
+ * process, which is what it's meant for, but not a power loss.
+ */
+public class CaptureJournal {
+    public final static String TAG = "CaptureJournal";
+
+    // An entry was reserved in the MediaStore: uri, title
+    public final static String STAGE_RESERVED = "reserved";
+    // The entry was handed out for a shot, and renamed after it: uri, title
+    public final static String STAGE_NAMED = "named";
+    // The file of the entry is being written: uri, title, width, height, orientation
+    public final static String STAGE_SAVING = "saving";
+    // A render started in a temporary directory: path
+    public final static String STAGE_RENDERING = "rendering";
+    // The entry or render is complete, or was rolled back: uri or path
+    public final static String STAGE_DONE = "done";
+
+    private final static String FILE_NAME = "capture.journal";
+
+    // The journal is truncated when nothing is in flight and it grew above this size
+    private final static long MAX_IDLE_SIZE = 32 * 1024;
+
+    private static CaptureJournal sSingleton;
+
+    private File mFile;
+    private FileOutputStream mOut;
+    // Captures and renders in flight
+    private final Set<String> mOpen = new HashSet<String>();
+
+    public static synchronized CaptureJournal getSingleton() {
+        if (sSingleton == null) {
+            sSingleton = new CaptureJournal();
+        }
+
+        return sSingleton;
+    }
+
+    /**
+     * Opens the journal, and replays the one of the previous process in the
+     * background. Only the first call does something.
+     *
+     * @param context The context
+     */
+    public synchronized void open(Context context) {
+        if (mOut != null) {
+            return;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final File dir = appContext.getFilesDir();
+        mFile = new File(dir, FILE_NAME);
+
+        // Move the previous journal aside, so that we can start appending right away
+        if (mFile.exists()) {
+            mFile.renameTo(new File(dir, FILE_NAME + "." + System.currentTimeMillis()));
+        }
+
+        try {
+            mOut = new FileOutputStream(mFile, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the capture journal", e);
+        }
+
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (file.getName().startsWith(FILE_NAME + ".")) {
+                        replay(appContext, file);
+                        file.delete();
+                    }
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Records a stage of a capture or a render
+     *
+     * @param stage One of STAGE_*
+     * @param key The MediaStore URI of the capture, or the temporary directory of
+     *            the render
+     * @param args The arguments of the stage
+     */
+    public void record(String stage, String key, Object... args) {
+        StringBuilder line = new StringBuilder(128);
+        line.append(stage).append('\t').append(key);
+        for (Object arg : args) {
+            line.append('\t').append(arg);
+        }
+        line.append('\n');
+        final byte[] bytes = line.toString().getBytes();
+
+        synchronized (this) {
+            if (STAGE_DONE.equals(stage)) {
+                mOpen.remove(key);
+            } else {
+                mOpen.add(key);
+            }
+
+            if (mOut == null) {
+                return;
+            }
+
+            try {
+                if (mOpen.isEmpty() && mFile.length() > MAX_IDLE_SIZE) {
+                    // Everything recorded so far is complete, start over
+                    mOut.getChannel().truncate(0);
+                } else {
+                    mOut.write(bytes);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append to the capture journal", e);
+            }
+        }
+    }
+
+    /**
+     * Records a stage of a capture. Captures without a MediaStore entry (the namer
+     * couldn't reserve one) have nothing to roll back, and aren't recorded.
+     *
+     * @param stage One of STAGE_*
+     * @param uri The MediaStore URI of the capture, or null
+     * @param args The arguments of the stage
+     */
+    public void record(String stage, Uri uri, Object... args) {
+        if (uri == null) {
+            return;
+        }
+        record(stage, uri.toString(), args);
+    }
+
+    // Runs in replay thread
+    private void replay(Context context, File file) {
+        // Last stage of each capture and render, with its arguments
+        Map<String, String[]> states = new HashMap<String, String[]>();
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 2) {
+                    // Incomplete last line
+                    continue;
+                }
+                if (STAGE_DONE.equals(fields[0])) {
+                    states.remove(fields[1]);
+                } else {
+                    states.put(fields[1], fields);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file, e);
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                // Do nothing here
+            }
+        }
+
+        for (String[] fields : states.values()) {
+            try {
+                recover(context, fields);
+            } catch (Throwable th) {
+                // A half-written line, or a provider error: don't prevent the others
+                Log.e(TAG, "Failed to recover " + fields[1], th);
+            }
+        }
+    }
+
+    // Runs in replay thread
+    private void recover(Context context, String[] fields) {
+        final String stage = fields[0];
+        final ContentResolver resolver = context.getContentResolver();
+        final Storage storage = Storage.getStorage();
+
+        if (STAGE_RENDERING.equals(stage)) {
+            Log.i(TAG, "Removing the files of an interrupted render: " + fields[1]);
+            Util.deleteRecursively(new File(fields[1]));
+            return;
+        }
+
+        Uri uri = Uri.parse(fields[1]);
+        String title = (fields.length > 2) ? fields[2] : null;
+        File file = (title == null) ? null : new File(storage.generateFilepath(title));
+
+        if (STAGE_SAVING.equals(stage) && fields.length >= 6 && file.exists()) {
+            // Files only get their final name once complete: index it
+            Log.i(TAG, "Indexing an interrupted capture: " + title);
+            resolver.update(uri, storage.getImageValues(title, null,
+                    Integer.parseInt(fields[5]), (int) file.length(),
+                    Integer.parseInt(fields[3]), Integer.parseInt(fields[4])), null, null);
+            Util.broadcastNewPicture(context, uri);
+            return;
+        }
+
+        Log.i(TAG, "Rolling back an interrupted capture: " + uri);
+        storage.deleteImage(resolver, uri);
+        if (file != null) {
+            new File(file.getPath() + ".tmp").delete();
+        }
+    }
+}
@@ -25,53 +25,24 @@ import android.util.Log;
 public class Exif {
     private static final String TAG = "CameraExif";
 
+    // Results of findExifSegment() when there is no segment to return
+    private static final int NOT_FOUND = -1;
+    private static final int INVALID_LENGTH = -2;
+
     // Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
     public static int getOrientation(byte[] jpeg) {
         if (jpeg == null) {
             return 0;
         }
 
-        int offset = 0;
+        int offset = findExifSegment(jpeg);
         int length = 0;
-
-        // ISO/IEC 10918-1:1993(E)
-        while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
-            int marker = jpeg[offset] & 0xFF;
-
-            // Check if the marker is a padding.
-            if (marker == 0xFF) {
-                continue;
-            }
-            offset++;
-
-            // Check if the marker is SOI or TEM.
-            if (marker == 0xD8 || marker == 0x01) {
-                continue;
-            }
-            // Check if the marker is EOI or SOS.
-            if (marker == 0xD9 || marker == 0xDA) {
-                break;
-            }
-
-            // Get the length and check if it is reasonable.
-            length = pack(jpeg, offset, 2, false);
-            if (length < 2 || offset + length > jpeg.length) {
-                Log.e(TAG, "Invalid length");
-                return 0;
-            }
-
-            // Break if the marker is EXIF in APP1.
-            if (marker == 0xE1 && length >= 8 &&
-                    pack(jpeg, offset + 2, 4, false) == 0x45786966 &&
-                    pack(jpeg, offset + 6, 2, false) == 0) {
-                offset += 8;
-                length -= 8;
-                break;
-            }
-
-            // Skip other markers.
-            offset += length;
-            length = 0;
+        if (offset >= 0) {
+            // Skip the marker, the length and the "Exif\0\0" header.
+            length = pack(jpeg, offset + 2, 2, false) - 8;
+            offset += 10;
+        } else if (offset == INVALID_LENGTH) {
+            return 0;
         }
 
         // JEITA CP-3451 Exif Version 2.2
@@ -123,6 +94,121 @@ public class Exif {
         return 0;
     }
 
+    /**
+     * Returns the EXIF segment of a JPEG, from its APP1 marker to its end, so that
+     * it can be spliced into another JPEG with {@link #spliceExifSegment}.
+     *
+     * @param jpeg The JPEG data
+     * @return The segment, or null if the JPEG has no EXIF data
+     */
+    public static byte[] getExifSegment(byte[] jpeg) {
+        if (jpeg == null) {
+            return null;
+        }
+
+        int offset = findExifSegment(jpeg);
+        if (offset < 0) {
+            return null;
+        }
+
+        int size = 2 + pack(jpeg, offset + 2, 2, false);
+        byte[] segment = new byte[size];
+        System.arraycopy(jpeg, offset, segment, 0, size);
+        return segment;
+    }
+
+    /**
+     * Inserts an EXIF segment right after the SOI marker of a JPEG, in place of its
+     * own EXIF segment if it has one. The whole file is built in memory, so that it
+     * can then be written once.
+     *
+     * @param jpeg The JPEG data
+     * @param segment The EXIF segment, as returned by {@link #getExifSegment}
+     * @return The new JPEG data, or the original one if it isn't a valid JPEG
+     */
+    public static byte[] spliceExifSegment(byte[] jpeg, byte[] segment) {
+        if (jpeg == null || segment == null || jpeg.length < 2
+                || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return jpeg;
+        }
+
+        int oldOffset = findExifSegment(jpeg);
+        if (oldOffset == INVALID_LENGTH) {
+            return jpeg;
+        }
+        int oldSize = (oldOffset < 0) ? 0 : 2 + pack(jpeg, oldOffset + 2, 2, false);
+
+        byte[] result = new byte[jpeg.length - oldSize + segment.length];
+        int pos = 0;
+
+        // SOI, then the new segment
+        result[pos++] = jpeg[0];
+        result[pos++] = jpeg[1];
+        System.arraycopy(segment, 0, result, pos, segment.length);
+        pos += segment.length;
+
+        // Then everything else, without the old segment
+        if (oldOffset < 0) {
+            System.arraycopy(jpeg, 2, result, pos, jpeg.length - 2);
+        } else {
+            System.arraycopy(jpeg, 2, result, pos, oldOffset - 2);
+            pos += oldOffset - 2;
+            System.arraycopy(jpeg, oldOffset + oldSize, result, pos,
+                    jpeg.length - oldOffset - oldSize);
+        }
+
+        return result;
+    }
+
+    /**
+     * Walks the JPEG markers up to the EXIF data.
+     *
+     * @return The offset of the APP1 marker of the EXIF segment, NOT_FOUND if the
+     * JPEG has none, or INVALID_LENGTH if a segment length is wrong
+     */
+    private static int findExifSegment(byte[] jpeg) {
+        int offset = 0;
+
+        // ISO/IEC 10918-1:1993(E)
+        while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
+            int marker = jpeg[offset] & 0xFF;
+
+            // Check if the marker is a padding.
+            if (marker == 0xFF) {
+                continue;
+            }
+            offset++;
+
+            // Check if the marker is SOI or TEM.
+            if (marker == 0xD8 || marker == 0x01) {
+                continue;
+            }
+            // Check if the marker is EOI or SOS.
+            if (marker == 0xD9 || marker == 0xDA) {
+                break;
+            }
+
+            // Get the length and check if it is reasonable.
+            int length = pack(jpeg, offset, 2, false);
+            if (length < 2 || offset + length > jpeg.length) {
+                Log.e(TAG, "Invalid length");
+                return INVALID_LENGTH;
+            }
+
+            // Stop if the marker is EXIF in APP1.
+            if (marker == 0xE1 && length >= 8 &&
+                    pack(jpeg, offset + 2, 4, false) == 0x45786966 &&
+                    pack(jpeg, offset + 6, 2, false) == 0) {
+                return offset - 2;
+            }
+
+            // Skip other markers.
+            offset += length;
+        }
+
+        return NOT_FOUND;
+    }
+
     private static int pack(byte[] bytes, int offset, int length,
             boolean littleEndian) {
         int step = 1;
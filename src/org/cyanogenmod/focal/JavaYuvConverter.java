@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.graphics.Bitmap;
+
+/**
+ * YuvConverter running on the CPU, used on devices without RenderScript
+ * intrinsics (API < 17)
+ */
+public class JavaYuvConverter implements YuvConverter {
+    private YuvConversionEngine mEngine;
+
+    public JavaYuvConverter() {
+        this(YuvConversionEngine.getSingleton());
+    }
+
+    public JavaYuvConverter(YuvConversionEngine engine) {
+        mEngine = engine;
+    }
+
+    @Override
+    public void convertNV21(byte[] nv21, int width, int height, int[] argb) {
+        mEngine.decodeNV21(nv21, width, height, argb);
+    }
+
+    @Override
+    public Bitmap convertNV21(byte[] nv21, int width, int height) {
+        // Decode into a pooled buffer, Bitmap.createBitmap copies the pixels anyway
+        YuvDecoder.BufferPool pool = YuvDecoder.getBufferPool();
+        int[] argb = pool.acquire(width, height);
+        mEngine.decodeNV21(nv21, width, height, argb);
+        Bitmap bitmap = Bitmap.createBitmap(argb, width, height, Bitmap.Config.ARGB_8888);
+        pool.release(argb);
+        return bitmap;
+    }
+
+    @Override
+    public void release() {
+        // Nothing to release, the engine is shared
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Write-behind MediaStore indexer. Files are written synchronously by their savers,
+ * but the MediaStore updates completing their entries are queued here, and applied
+ * by batches in a single provider transaction, either when enough of them are
+ * pending or after a short delay. The new pictures are broadcast once their batch
+ * has been applied. This way, a burst or a PicSphere doesn't pay a provider
+ * round-trip per picture. Anything that must only happen once an entry is complete
+ * (e.g. showing it) is given to update(), and run after the batch.
+ */
+public class MediaIndexer extends Thread {
+    public final static String TAG = "MediaIndexer";
+
+    private static class Update {
+        Uri uri;
+        ContentValues values;
+        boolean broadcast;
+        Runnable onApplied;
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int mBatchSize;
+    private final long mFlushDelay;
+    private ArrayList<Update> mPending = new ArrayList<Update>();
+    private long mFirstPendingTime;
+    private boolean mFlushRequested;
+    private boolean mFlushing;
+    private boolean mStop;
+
+    /**
+     * @param context The context, used to broadcast new pictures
+     * @param batchSize Number of pending updates that triggers a flush
+     * @param flushDelay Maximum time, in milliseconds, an update can stay pending
+     */
+    public MediaIndexer(Context context, int batchSize, long flushDelay) {
+        super(TAG);
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mBatchSize = Math.max(1, batchSize);
+        mFlushDelay = flushDelay;
+        start();
+    }
+
+    /**
+     * Queues the update of a MediaStore entry. Once the indexer is finished, the
+     * update is applied right away on the calling thread.
+     *
+     * @param uri The entry to update. Null (no entry could be reserved) is ignored.
+     * @param values The new values of the entry
+     * @param broadcast Whether or not to broadcast the entry as a new picture
+     */
+    public void update(Uri uri, ContentValues values, boolean broadcast) {
+        update(uri, values, broadcast, null);
+    }
+
+    /**
+     * Queues the update of a MediaStore entry. Once the indexer is finished, the
+     * update is applied right away on the calling thread.
+     *
+     * @param uri The entry to update. Null (no entry could be reserved) is ignored.
+     * @param values The new values of the entry
+     * @param broadcast Whether or not to broadcast the entry as a new picture
+     * @param onApplied Run once the update is applied (or failed), on the thread
+     *                  applying it. May be null.
+     */
+    public void update(Uri uri, ContentValues values, boolean broadcast,
+                       Runnable onApplied) {
+        if (uri == null) {
+            Log.e(TAG, "No MediaStore entry to update with " + values);
+            if (onApplied != null) {
+                onApplied.run();
+            }
+            return;
+        }
+
+        Update u = new Update();
+        u.uri = uri;
+        u.values = values;
+        u.broadcast = broadcast;
+        u.onApplied = onApplied;
+
+        synchronized (this) {
+            if (!mStop) {
+                if (mPending.isEmpty()) {
+                    mFirstPendingTime = SystemClock.uptimeMillis();
+                }
+                mPending.add(u);
+                if (mPending.size() >= mBatchSize) {
+                    mFlushRequested = true;
+                }
+                notifyAll();
+                return;
+            }
+        }
+
+        ArrayList<Update> single = new ArrayList<Update>(1);
+        single.add(u);
+        apply(single);
+    }
+
+    /**
+     * Applies all the pending updates, and waits until they are done
+     */
+    public synchronized void flush() {
+        mFlushRequested = true;
+        notifyAll();
+        while (!mPending.isEmpty() || mFlushing) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+    }
+
+    /**
+     * Applies all the pending updates, and stops the indexer thread. This waits
+     * until the thread is gone, and may be called again once it is.
+     */
+    public void finish() {
+        synchronized (this) {
+            mStop = true;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException ex) {
+            // ignore.
+        }
+    }
+
+    // Runs in indexer thread
+    @Override
+    public void run() {
+        while (true) {
+            ArrayList<Update> batch;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    mFlushRequested = false;
+                    if (mStop) break;
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                    continue;
+                }
+
+                long wait = mFirstPendingTime + mFlushDelay - SystemClock.uptimeMillis();
+                if (!mFlushRequested && !mStop && wait > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                    continue;
+                }
+
+                batch = mPending;
+                mPending = new ArrayList<Update>();
+                mFlushRequested = false;
+                mFlushing = true;
+            }
+
+            try {
+                apply(batch);
+            } finally {
+                synchronized (this) {
+                    mFlushing = false;
+                    notifyAll();  // the main thread may wait in flush
+                }
+            }
+        }
+    }
+
+    private void apply(ArrayList<Update> batch) {
+        try {
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(batch.size());
+            for (Update u : batch) {
+                ops.add(ContentProviderOperation.newUpdate(u.uri).withValues(u.values).build());
+            }
+            mResolver.applyBatch(MediaStore.AUTHORITY, ops);
+        } catch (Throwable th) {
+            // One bad entry fails the whole batch, so fall back to one update per entry
+            Log.w(TAG, "Failed to apply batch of " + batch.size() + " updates", th);
+            for (Update u : batch) {
+                try {
+                    mResolver.update(u.uri, u.values, null, null);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Failed to update image (" + t + ") ; uri=" + u.uri
+                            + " values=" + u.values);
+                    u.broadcast = false;
+                }
+            }
+        }
+
+        CaptureJournal journal = CaptureJournal.getSingleton();
+        for (Update u : batch) {
+            journal.record(CaptureJournal.STAGE_DONE, u.uri);
+            if (u.broadcast) {
+                Util.broadcastNewPicture(mContext, u.uri);
+            }
+            if (u.onApplied != null) {
+                u.onApplied.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers preview frames to analysis consumers (histogram, focus peaking, etc).
+ * Each consumer runs on its own worker thread and gets a private copy of the
+ * frame, so no consumer holds a camera buffer while it works. A consumer that
+ * falls behind simply skips to the most recent frame: older frames are dropped
+ * (and counted), and the preview callback is never slowed down.
+ *
+ * The workers are stopped while the camera is paused, and started again on resume.
+ * A consumer failing on a frame is logged, and still gets the next frames.
+ */
+public class PreviewFrameDispatcher {
+    public final static String TAG = "PreviewFrameDispatcher";
+
+    public interface Consumer {
+        /**
+         * Called on the consumer's worker thread with a new preview frame. The data
+         * array is owned by the worker and reused for the next frames, so it must
+         * not be kept after this method returns.
+         *
+         * @param data The NV21 data of the frame
+         * @param width Width of the frame
+         * @param height Height of the frame
+         * @param sequence The sequence number of the frame
+         * @param timestamp The time of the frame, in System.nanoTime() base
+         */
+        public void onPreviewFrame(byte[] data, int width, int height,
+                                   long sequence, long timestamp);
+    }
+
+    private final List<Worker> mWorkers = new ArrayList<Worker>();
+    private volatile Worker[] mWorkersSnapshot = new Worker[0];
+    private volatile PreviewFrameRing mFrameRing;
+    private boolean mPaused;
+
+    /**
+     * Sets the ring the frames are taken from. Called when the preview size changes.
+     *
+     * @param ring The ring of preview buffers
+     */
+    public void setFrameRing(PreviewFrameRing ring) {
+        mFrameRing = ring;
+    }
+
+    /**
+     * Registers a consumer, and starts its worker
+     *
+     * @param consumer The consumer
+     * @return The worker delivering frames to the consumer, which exposes its counters
+     */
+    public synchronized Worker addConsumer(Consumer consumer) {
+        for (Worker worker : mWorkers) {
+            if (worker.mConsumer == consumer) {
+                return worker;
+            }
+        }
+
+        Worker worker = new Worker(consumer);
+        mWorkers.add(worker);
+        mWorkersSnapshot = mWorkers.toArray(new Worker[mWorkers.size()]);
+        if (!mPaused) {
+            worker.start();
+        }
+        return worker;
+    }
+
+    /**
+     * Unregisters a consumer, and stops its worker. A frame being processed is
+     * completed first, but this method doesn't wait for it.
+     *
+     * @param consumer The consumer
+     */
+    public synchronized void removeConsumer(Consumer consumer) {
+        for (int i = 0; i < mWorkers.size(); i++) {
+            Worker worker = mWorkers.get(i);
+            if (worker.mConsumer == consumer) {
+                mWorkers.remove(i);
+                mWorkersSnapshot = mWorkers.toArray(new Worker[mWorkers.size()]);
+                worker.finish();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the workers, and waits until they're gone. The consumers stay registered.
+     */
+    public synchronized void pause() {
+        mPaused = true;
+        for (Worker worker : mWorkers) {
+            worker.finish();
+        }
+        for (Worker worker : mWorkers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Starts the workers of the registered consumers again
+     */
+    public synchronized void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Tells the workers that a new frame was published in the ring. This is called
+     * from the preview callback and doesn't take any lock.
+     */
+    public void onFrameAvailable() {
+        for (Worker worker : mWorkersSnapshot) {
+            worker.wakeUp();
+        }
+    }
+
+    /**
+     * Worker delivering frames to one consumer, on a thread of its own. Its counters
+     * are kept when its thread is stopped and started again.
+     */
+    public class Worker implements Runnable {
+        private final Consumer mConsumer;
+        private volatile Thread mThread;
+        private volatile boolean mStop;
+        private volatile long mDeliveredCount;
+        private volatile long mDroppedCount;
+        private long mLastSequence;
+        private byte[] mBuffer;
+
+        private Worker(Consumer consumer) {
+            mConsumer = consumer;
+        }
+
+        /**
+         * @return The number of frames handed to the consumer
+         */
+        public long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        /**
+         * @return The number of frames skipped because the consumer was busy
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        // The previous thread, if any, must be joined first
+        private void start() {
+            mStop = false;
+            Thread thread = new Thread(this, TAG);
+            thread.setDaemon(true);
+            mThread = thread;
+            thread.start();
+        }
+
+        private void finish() {
+            mStop = true;
+            wakeUp();
+        }
+
+        private void join() {
+            Thread thread = mThread;
+            if (thread == null) {
+                return;
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // ignore.
+            }
+            mThread = null;
+        }
+
+        private void wakeUp() {
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            PreviewFrameRing currentRing = null;
+
+            while (!mStop) {
+                PreviewFrameRing ring = mFrameRing;
+                PreviewFrameRing.Frame frame = (ring == null) ? null : ring.acquireLatest();
+
+                if (ring != currentRing) {
+                    // New preview size: sequence numbers start over
+                    currentRing = ring;
+                    mLastSequence = 0;
+                }
+
+                if (frame == null || frame.getSequence() == mLastSequence) {
+                    if (frame != null) {
+                        frame.release();
+                    }
+                    // Nothing new, wait for the next frame
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                final int width = frame.getWidth();
+                final int height = frame.getHeight();
+                final long sequence = frame.getSequence();
+                final long timestamp = frame.getTimestamp();
+                try {
+                    byte[] data = frame.getData();
+                    if (mBuffer == null || mBuffer.length != data.length) {
+                        mBuffer = new byte[data.length];
+                    }
+                    System.arraycopy(data, 0, mBuffer, 0, data.length);
+                } finally {
+                    frame.release();
+                }
+
+                if (mLastSequence != 0 && sequence > mLastSequence + 1) {
+                    mDroppedCount += sequence - mLastSequence - 1;
+                }
+                mLastSequence = sequence;
+
+                try {
+                    mConsumer.onPreviewFrame(mBuffer, width, height, sequence, timestamp);
+                } catch (RuntimeException e) {
+                    // Don't let one bad frame kill the worker for good
+                    Log.e(TAG, "Consumer failed on frame " + sequence, e);
+                }
+                mDeliveredCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A small ring of preview buffers shared between the camera HAL, which fills them,
+ * and any number of readers. Each buffer is either queued in the camera, free, or
+ * published (then possibly retained by readers). A published frame is never handed
+ * back to the camera while someone still holds it, so readers always see complete
+ * frames, and neither side ever blocks: everything relies on atomic operations.
+ */
+public class PreviewFrameRing {
+    public final static int DEFAULT_BUFFER_COUNT = 3;
+
+    // Frame states. Values above zero are the number of references held on a
+    // published frame (the ring itself holds one while the frame is the latest).
+    private final static int STATE_QUEUED = -1;
+    private final static int STATE_FREE = 0;
+
+    public interface Listener {
+        /**
+         * Called when a frame is not used anymore and can be queued again in
+         * the camera. This can be called from any thread.
+         */
+        public void onFrameFree();
+    }
+
+    /**
+     * A preview frame. Frames obtained from acquireLatest() must be given
+     * back with release() as soon as possible.
+     */
+    public class Frame {
+        private final byte[] mData;
+        private final AtomicInteger mState = new AtomicInteger(STATE_FREE);
+        private long mSequence;
+        private long mTimestamp;
+
+        private Frame(int size) {
+            mData = new byte[size];
+        }
+
+        /**
+         * @return The NV21 data of the frame. It must not be modified.
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @return The width of the frame
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * @return The height of the frame
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return The number of the frame, increasing by one for each published frame
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return The time the frame was published at, in System.nanoTime() base
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Gives the frame back to the ring
+         */
+        public void release() {
+            if (mState.decrementAndGet() == STATE_FREE && mListener != null) {
+                mListener.onFrameFree();
+            }
+        }
+
+        private boolean retain() {
+            while (true) {
+                int state = mState.get();
+                if (state <= STATE_FREE) {
+                    // The frame went back to the camera meanwhile
+                    return false;
+                }
+                if (mState.compareAndSet(state, state + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final Frame[] mFrames;
+    private final int mWidth;
+    private final int mHeight;
+    private final AtomicReference<Frame> mLatest = new AtomicReference<Frame>();
+    private final Listener mListener;
+    private long mSequence;
+
+    /**
+     * @param count Number of buffers in the ring
+     * @param width Width of the preview frames
+     * @param height Height of the preview frames
+     * @param listener Listener notified when buffers become free, or null
+     */
+    public PreviewFrameRing(int count, int width, int height, Listener listener) {
+        final int bufferSize = (int) (width * height * 1.5 + 0.5);
+        mWidth = width;
+        mHeight = height;
+        mFrames = new Frame[count];
+        for (int i = 0; i < count; i++) {
+            mFrames[i] = new Frame(bufferSize);
+        }
+        mListener = listener;
+    }
+
+    /**
+     * Takes a free buffer to queue in the camera
+     *
+     * @return A free buffer, or null if all of them are queued or in use
+     */
+    public byte[] takeFreeBuffer() {
+        for (Frame frame : mFrames) {
+            if (frame.mState.compareAndSet(STATE_FREE, STATE_QUEUED)) {
+                return frame.mData;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Marks all the buffers queued in the camera as free again. This must be called
+     * when the camera dropped its buffers (camera re-opened or callback reset).
+     */
+    public void reclaimQueuedBuffers() {
+        for (Frame frame : mFrames) {
+            frame.mState.compareAndSet(STATE_QUEUED, STATE_FREE);
+        }
+    }
+
+    /**
+     * Publishes a buffer the camera just filled, making it the latest frame.
+     * Must be called from a single thread (the preview callback).
+     *
+     * @param data The buffer passed to onPreviewFrame
+     * @param timestamp The time of the frame, in System.nanoTime() base
+     * @return The published frame, or null if the buffer doesn't belong to this ring
+     */
+    public Frame publish(byte[] data, long timestamp) {
+        Frame frame = null;
+        for (Frame f : mFrames) {
+            if (f.mData == data) {
+                frame = f;
+                break;
+            }
+        }
+
+        if (frame == null) {
+            return null;
+        }
+
+        frame.mSequence = ++mSequence;
+        frame.mTimestamp = timestamp;
+        // This write publishes the fields above to the readers
+        frame.mState.set(1);
+
+        Frame previous = mLatest.getAndSet(frame);
+        if (previous != null) {
+            previous.release();
+        }
+
+        return frame;
+    }
+
+    /**
+     * Returns the latest complete frame, retained for the caller who must call
+     * release() on it once done.
+     *
+     * @return The latest frame, or null if no frame was published yet
+     */
+    public Frame acquireLatest() {
+        while (true) {
+            Frame frame = mLatest.get();
+            if (frame == null) {
+                return null;
+            }
+            if (frame.retain()) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * @return The sequence number of the latest published frame
+     */
+    public long getLatestSequence() {
+        Frame frame = mLatest.get();
+        return (frame == null) ? 0 : frame.mSequence;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.ScriptIntrinsicYuvToRGB;
+import android.renderscript.Type;
+import android.util.Log;
+
+/**
+ * YuvConverter using the RenderScript YUV to RGB intrinsic. The RenderScript context
+ * and script are created once, and the allocations are only re-created when the
+ * frame size changes.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+public class RenderScriptYuvConverter implements YuvConverter {
+    public final static String TAG = "RenderScriptYuvConverter";
+
+    private Context mContext;
+    private RenderScript mRS;
+    private ScriptIntrinsicYuvToRGB mScript;
+    private Allocation mAllocationIn;
+    private Allocation mAllocationOut;
+    private Bitmap mOutputBitmap;
+    private int mWidth;
+    private int mHeight;
+
+    public RenderScriptYuvConverter(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public synchronized void convertNV21(byte[] nv21, int width, int height, int[] argb) {
+        prepare(width, height);
+
+        mAllocationIn.copyFrom(nv21);
+        mScript.forEach(mAllocationOut);
+        if (mOutputBitmap == null) {
+            mOutputBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        mAllocationOut.copyTo(mOutputBitmap);
+        mOutputBitmap.getPixels(argb, 0, width, 0, 0, width, height);
+    }
+
+    @Override
+    public synchronized Bitmap convertNV21(byte[] nv21, int width, int height) {
+        prepare(width, height);
+
+        // The allocation is copied straight into the bitmap handed out
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mAllocationIn.copyFrom(nv21);
+        mScript.forEach(mAllocationOut);
+        mAllocationOut.copyTo(bitmap);
+        return bitmap;
+    }
+
+    @Override
+    public synchronized void release() {
+        releaseAllocations();
+
+        if (mScript != null) {
+            mScript.destroy();
+            mScript = null;
+        }
+
+        if (mRS != null) {
+            mRS.destroy();
+            mRS = null;
+        }
+    }
+
+    private void prepare(int width, int height) {
+        if (mRS == null) {
+            mRS = RenderScript.create(mContext);
+            mScript = ScriptIntrinsicYuvToRGB.create(mRS, Element.RGBA_8888(mRS));
+        }
+
+        if (mAllocationIn != null && width == mWidth && height == mHeight) {
+            return;
+        }
+
+        Log.v(TAG, "Allocating for " + width + "x" + height + " frames");
+        releaseAllocations();
+
+        Type.Builder tb = new Type.Builder(mRS, Element.RGBA_8888(mRS));
+        tb.setX(width);
+        tb.setY(height);
+
+        mAllocationOut = Allocation.createTyped(mRS, tb.create());
+        mAllocationIn = Allocation.createSized(mRS, Element.U8(mRS),
+                (height * width) + ((height / 2) * (width / 2) * 2));
+        mScript.setInput(mAllocationIn);
+        mWidth = width;
+        mHeight = height;
+    }
+
+    private void releaseAllocations() {
+        if (mAllocationIn != null) {
+            mAllocationIn.destroy();
+            mAllocationIn = null;
+        }
+
+        if (mAllocationOut != null) {
+            mAllocationOut.destroy();
+            mAllocationOut = null;
+        }
+
+        if (mOutputBitmap != null) {
+            mOutputBitmap.recycle();
+            mOutputBitmap = null;
+        }
+    }
+}
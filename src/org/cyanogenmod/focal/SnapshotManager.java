@@ -22,13 +22,11 @@ package org.cyanogenmod.focal;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.hardware.Camera;
 import android.location.Location;
 import android.media.CamcorderProfile;
-import android.media.ExifInterface;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Handler;
@@ -37,29 +35,25 @@ import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import com.drew.imaging.jpeg.JpegMetadataReader;
-import com.drew.imaging.jpeg.JpegProcessingException;
-import com.drew.metadata.Directory;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.Tag;
-
-import org.cyanogenmod.focal.feats.AutoPictureEnhancer;
-import org.cyanogenmod.focal.feats.PixelBuffer;
+import org.cyanogenmod.focal.feats.AutoEnhanceWorker;
 import org.cyanogenmod.focal.widgets.SimpleToggleWidget;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class manages taking snapshots and videos from Camera
  */
 public class SnapshotManager {
     public final static String TAG = "SnapshotManager";
+
+    // Largest dimension of the preview thumbnails attached to queued snapshots
+    private final static int THUMBNAIL_MAX_SIZE = 640;
     private boolean mPaused;
 
     public interface SnapshotListener {
@@ -133,12 +127,22 @@ public class SnapshotManager {
 
         // Whether or not to bypass image processing (even if user enabled it)
         public boolean mBypassProcessing;
+
+        // Whether the shot is only an input of another picture (HDR bracket, PicSphere
+        // tile), in which case it's saved after the user-visible shots, in the
+        // StagingStore rather than in the gallery (mUri is then a file URI)
+        public boolean mIntermediate;
+
+        // The kind of shot, for the storage statistics (StorageMonitor.SHOT_*)
+        public int mShotKind;
     }
 
     private Context mContext;
     private CameraManager mCameraManager;
     private FocusManager mFocusManager;
     private boolean mBypassProcessing;
+    private boolean mIntermediateShot;
+    private int mShotKind = StorageMonitor.SHOT_NORMAL;
 
     // Photo-related variables
     private boolean mWaitExposureSettle;
@@ -150,21 +154,33 @@ public class SnapshotManager {
     private ContentResolver mContentResolver;
     private ImageSaver mImageSaver;
     private ImageNamer mImageNamer;
-    private PixelBuffer mOffscreenGL;
-    private AutoPictureEnhancer mAutoPicEnhancer;
+    private MediaIndexer mMediaIndexer;
+    private AutoEnhanceWorker mEnhanceWorker;
+    private int mPendingEnhancements;
     private boolean mImageIsProcessing;
     private boolean mDoAutoEnhance;
+    private int mAutoEnhanceEngine;
 
     // Video-related variables
+    // Start of the segment being recorded
     private long mRecordingStartTime;
+    private long mVideoDateTaken;
+    private int mVideoSegment;
     private boolean mIsRecording;
     private VideoNamer mVideoNamer;
+    private VideoFinalizer mVideoFinalizer;
     private CamcorderProfile mProfile;
 
     // The video file that the hardware camera is about to record into
     // (or is recording into.)
     private String mVideoFilename;
     private ParcelFileDescriptor mVideoFileDescriptor;
+    // The MediaStore entry of the segment being recorded, once taken from the namer
+    private Uri mVideoUri;
+
+    // The next segment of the video being recorded, prepared in advance
+    private String mNextVideoFilename;
+    private ContentValues mNextVideoValues;
 
     // The video file that has already been recorded, and that is being
     // examined by the user.
@@ -177,12 +193,16 @@ public class SnapshotManager {
         public void onShutter() {
             Log.v(TAG, "onShutter");
 
-            Camera.Size s = mCameraManager.getParameters().getPictureSize();
-            mImageNamer.prepareUri(mContentResolver, System.currentTimeMillis(), s.width, s.height, 0);
-
             // On shutter confirmed, play a small flashing animation
             final SnapshotInfo snap = mSnapshotsQueue.get(mCurrentShutterQueueIndex);
 
+            // Only the shots saved to the gallery take an entry, with getUri()
+            if (snap.mSave && !snap.mIntermediate) {
+                Camera.Size s = mCameraManager.getParameters().getPictureSize();
+                mImageNamer.prepareUri(mContentResolver, System.currentTimeMillis(),
+                        s.width, s.height, 0);
+            }
+
             for (SnapshotListener listener : mListeners) {
                 listener.onSnapshotShutter(snap);
             }
@@ -222,8 +242,10 @@ public class SnapshotManager {
 
             // Store the jpeg on internal memory if needed
             if (snap.mSave) {
-                final Uri uri = mImageNamer.getUri();
-                final String title = mImageNamer.getTitle();
+                // Intermediate shots are staged out of the gallery, so they don't
+                // need a MediaStore entry
+                final Uri uri = snap.mIntermediate ? null : mImageNamer.getUri();
+                final String title = snap.mIntermediate ? null : mImageNamer.getTitle();
                 snap.mUri = uri;
 
                 // If the orientation is somehow negative, avoid the Gallery crashing dumbly
@@ -233,60 +255,45 @@ public class SnapshotManager {
                 }
 
                 final int correctedOrientation = orientation;
-                final byte[] finalData = jpegData;
 
                 if (!snap.mBypassProcessing && mDoAutoEnhance) {
-                    new Thread() {
-                        public void run() {
-                            mImageIsProcessing = true;
-                            for (SnapshotListener listener : mListeners) {
-                                listener.onSnapshotProcessing(snap);
-                            }
-
-                            // Read EXIF
-                            List<Tag> tagsList = new ArrayList<Tag>();
-                            BufferedInputStream is = new BufferedInputStream(
-                                    new ByteArrayInputStream(finalData));
-                            try {
-                                Metadata metadata = JpegMetadataReader.readMetadata(is, false);
-
-                                for (Directory directory : metadata.getDirectories()) {
-                                    for (Tag tag : directory.getTags()) {
-                                        tagsList.add(tag);
-                                    }
-                                }
-                            } catch (JpegProcessingException e) {
-                                Log.e(TAG, "Error processing input JPEG", e);
-                            }
+                    AutoEnhanceWorker worker;
+                    synchronized (SnapshotManager.this) {
+                        mImageIsProcessing = true;
+                        mPendingEnhancements++;
+                        if (mEnhanceWorker == null) {
+                            mEnhanceWorker = new AutoEnhanceWorker(mContext);
+                        }
+                        worker = mEnhanceWorker;
+                    }
+                    for (SnapshotListener listener : mListeners) {
+                        listener.onSnapshotProcessing(snap);
+                    }
 
-                            // XXX: PixelBuffer has to be created every time because the GL context
-                            // can only be used from its original thread. It's not very intense, but
-                            // ideally we would be re-using the same thread every time.
-                            mOffscreenGL = new PixelBuffer(mContext, s.width, s.height);
-                            mAutoPicEnhancer = new AutoPictureEnhancer(mContext);
-                            mOffscreenGL.setRenderer(mAutoPicEnhancer);
-                            mAutoPicEnhancer.setTexture(BitmapFactory.decodeByteArray(finalData,
-                                    0, finalData.length));
-
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            mOffscreenGL.getBitmap().compress(Bitmap.CompressFormat.JPEG, 90, baos);
-
-                            if (mImageSaver != null) {
-                                mImageSaver.addImage(baos.toByteArray(), uri, title, null,
-                                        width, height, correctedOrientation, tagsList, snap);
+                    // The worker keeps its GL context from one shot to the next, and
+                    // enhances the queued pictures back-to-back
+                    worker.enhance(jpegData, width, height, mAutoEnhanceEngine,
+                            new AutoEnhanceWorker.Callback() {
+                        @Override
+                        public void onPictureEnhanced(byte[] enhancedData) {
+                            ImageSaver saver = mImageSaver;
+                            if (saver != null) {
+                                saver.addImage(enhancedData, uri, title, null,
+                                        width, height, correctedOrientation, snap);
                             } else {
                                 Log.e(TAG, "ImageSaver was null: couldn't save image!");
                             }
 
-                            if (mPaused) {
-                                // We were paused, stop the saver now
-                                mImageSaver.finish();
-                                mImageSaver = null;
+                            synchronized (SnapshotManager.this) {
+                                mImageIsProcessing = --mPendingEnhancements > 0;
+                                if (mPaused && !mImageIsProcessing && saver != null) {
+                                    // We were paused, stop the saver now
+                                    saver.finish();
+                                    mImageSaver = null;
+                                }
                             }
-
-                            mImageIsProcessing = false;
                         }
-                    }.start();
+                    });
                 } else {
                     // Just save it as is
                     mImageSaver.addImage(jpegData, uri, title, null,
@@ -353,8 +360,10 @@ public class SnapshotManager {
             mImageSaver.addImage(jpegData, uri, title, null,
                     width, height, orientation);
 
-            for (SnapshotListener listener : mListeners) {
-                listener.onSnapshotSaved(info);
+            if (uri != null) {
+                for (SnapshotListener listener : mListeners) {
+                    listener.onSnapshotSaved(info);
+                }
             }
         }
     };
@@ -366,13 +375,24 @@ public class SnapshotManager {
         mSnapshotsQueue = new ArrayList<SnapshotInfo>();
         mListeners = new ArrayList<SnapshotListener>();
         mHandler = new Handler();
+        CaptureJournal.getSingleton().open(ctx);
         mImageSaver = new ImageSaver();
-        mImageNamer = new ImageNamer();
+        mImageNamer = createImageNamer();
         mVideoNamer = new VideoNamer();
+        mVideoFinalizer = new VideoFinalizer(ctx);
+        mMediaIndexer = createMediaIndexer();
         mContentResolver = ctx.getContentResolver();
         mProfile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
         mPaused = false;
         mImageIsProcessing = false;
+        mAutoEnhanceEngine = ctx.getResources().getInteger(R.integer.config_autoEnhanceEngine);
+
+        YuvConversionEngine.getSingleton().setParallelism(
+                ctx.getResources().getInteger(R.integer.config_yuvConversionThreads));
+        StorageMonitor.getSingleton().refreshAsync();
+        Storage.getStorage().setSyncPolicy(
+                ctx.getResources().getInteger(R.integer.config_storageSyncPolicy),
+                ctx.getResources().getInteger(R.integer.config_storageSyncBatchSize));
     }
 
     public void addListener(SnapshotListener listener) {
@@ -394,19 +414,61 @@ public class SnapshotManager {
         mBypassProcessing = bypass;
     }
 
+    /**
+     * Sets whether or not the next snapshot is an intermediate shot, only used as an
+     * input of another picture (HDR bracket, PicSphere tile). Intermediate shots are
+     * saved after the user-visible ones, in the StagingStore instead of the gallery.
+     * This value is reset after each snapshot queued!
+     * @param intermediate
+     */
+    public void setIntermediateShot(boolean intermediate) {
+        mIntermediateShot = intermediate;
+    }
+
+    /**
+     * Sets the kind of the next snapshots, for the storage statistics. Unlike
+     * bypass processing, this value is kept until changed.
+     * @param kind One of StorageMonitor.SHOT_*
+     */
+    public void setShotKind(int kind) {
+        mShotKind = kind;
+    }
+
+    /**
+     * @return The kind of the next snapshots, one of StorageMonitor.SHOT_*
+     */
+    public int getShotKind() {
+        return mShotKind;
+    }
+
     public void setAutoEnhance(boolean enhance) {
         mDoAutoEnhance = enhance;
     }
 
+    /**
+     * Enables or disables the enhancement of the pictures, and picks the engine
+     * enhancing them
+     * @param enhance True to enhance the next pictures
+     * @param engine AutoEnhanceWorker.ENGINE_GL or AutoEnhanceWorker.ENGINE_CPU
+     */
+    public void setAutoEnhance(boolean enhance, int engine) {
+        mDoAutoEnhance = enhance;
+        mAutoEnhanceEngine = engine;
+    }
+
     public boolean getAutoEnhance() {
         return mDoAutoEnhance;
     }
 
+    public int getAutoEnhanceEngine() {
+        return mAutoEnhanceEngine;
+    }
+
     public void prepareNamerUri(int width, int height) {
         if (mImageNamer == null) {
             // ImageNamer can be dead if the user exitted the app.
             // We restart it temporarily.
-            mImageNamer = new ImageNamer();
+            mImageNamer = createImageNamer();
         }
         mImageNamer.prepareUri(mContentResolver,
                 System.currentTimeMillis(), width, height, 0);
@@ -416,7 +478,7 @@ public class SnapshotManager {
         if (mImageNamer == null) {
             // ImageNamer can be dead if the user exitted the app.
             // We restart it temporarily.
-            mImageNamer = new ImageNamer();
+            mImageNamer = createImageNamer();
         }
         return mImageNamer.getUri();
     }
@@ -425,22 +487,72 @@ public class SnapshotManager {
         if (mImageNamer == null) {
             // ImageNamer can be dead if the user exitted the app.
             // We restart it temporarily.
-            mImageNamer = new ImageNamer();
+            mImageNamer = createImageNamer();
         }
         return mImageNamer.getTitle();
     }
 
     public void saveImage(Uri uri, String title, int width, int height,
                           int orientation, byte[] jpegData) {
+        saveImage(uri, title, width, height, orientation, jpegData,
+                StorageMonitor.SHOT_NORMAL);
+    }
+
+    public void saveImage(Uri uri, String title, int width, int height,
+                          int orientation, byte[] jpegData, int shotKind) {
         if (mImageSaver == null) {
             // ImageSaver can be dead if the user exitted the app.
             // We restart it temporarily.
             mImageSaver = new ImageSaver();
         }
         mImageSaver.addImage(jpegData, uri, title, null,
-                width, height, orientation);
+                width, height, orientation, null, shotKind);
         mImageSaver.waitDone();
         mImageSaver.finish();
+        mMediaIndexer.flush();
+    }
+
+    /**
+     * Saves an image that was already rendered to a file (HDR, PicSphere, etc). The file
+     * is moved into the gallery as is, and only its MediaStore entry is updated.
+     * Like saveImage, this waits until the image is saved.
+     *
+     * @param uri The URI given by the namer
+     * @param title The title given by the namer
+     * @param file The rendered JPEG file, which is moved
+     * @param shotKind The kind of shot, one of StorageMonitor.SHOT_*
+     * @return True if the image was saved
+     */
+    public boolean saveImageFile(Uri uri, String title, int width, int height,
+                                 int orientation, File file, int shotKind) {
+        for (SnapshotListener listener : mListeners) {
+            listener.onMediaSavingStart();
+        }
+
+        // The MediaStore entry must have been renamed after the shot first
+        ImageNamer namer = mImageNamer;
+        if (namer != null) {
+            namer.waitRenamed(uri);
+        }
+
+        Storage storage = Storage.getStorage();
+        CaptureJournal journal = CaptureJournal.getSingleton();
+        journal.record(CaptureJournal.STAGE_SAVING, uri, title, width, height, orientation);
+        long size = storage.moveImage(title, file);
+        if (size >= 0) {
+            StorageMonitor.getSingleton().onShotWritten(shotKind, size);
+            mMediaIndexer.update(uri, storage.getImageValues(title, null, orientation,
+                    (int) size, width, height), true);
+            mMediaIndexer.flush();
+        } else {
+            storage.deleteImage(mContentResolver, uri);
+            journal.record(CaptureJournal.STAGE_DONE, uri);
+        }
+
+        for (SnapshotListener listener : mListeners) {
+            listener.onMediaSavingDone();
+        }
+        return size >= 0;
     }
 
     /**
@@ -472,8 +584,10 @@ public class SnapshotManager {
         SnapshotInfo info = new SnapshotInfo();
         info.mSave = save;
         info.mExposureCompensation = exposureCompensation;
-        info.mThumbnail = mCameraManager.getLastPreviewFrame();
+        info.mThumbnail = mCameraManager.getLastPreviewThumbnail(THUMBNAIL_MAX_SIZE);
         info.mBypassProcessing = mBypassProcessing;
+        info.mIntermediate = mIntermediateShot;
+        info.mShotKind = mShotKind;
 
         Camera.Parameters params = mCameraManager.getParameters();
         if (params != null && params.getExposureCompensation() != exposureCompensation) {
@@ -485,6 +599,7 @@ public class SnapshotManager {
 
         // Reset bypass in any case
         mBypassProcessing = false;
+        mIntermediateShot = false;
 
         if (mSnapshotsQueue.size() == 1) {
             // We had no other snapshot queued so far, so start things up
@@ -503,6 +618,14 @@ public class SnapshotManager {
         return mImageSaver;
     }
 
+    /**
+     * @return The number of pictures that can be saved concurrently
+     */
+    public int getImageSaverThreadCount() {
+        ImageSaver saver = mImageSaver;
+        return (saver == null) ? 1 : saver.getThreadCount();
+    }
+
     public void setVideoProfile(final CamcorderProfile profile) {
         mProfile = profile;
 
@@ -517,7 +640,22 @@ public class SnapshotManager {
     public void startVideo() {
         Log.v(TAG, "startVideo");
 
+        // The previous video may still be finalizing, but its recorder must be stopped
+        mVideoFinalizer.waitRecorderStopped();
+
+        // Long videos are split in segments, so that they fit in FAT32 and that an
+        // interrupted recording only loses its last segment
+        final Resources res = mContext.getResources();
+        mCameraManager.setVideoSegmentListener(
+                res.getInteger(R.integer.config_videoSegmentMaxSizeMb) * 1024L * 1024L,
+                res.getInteger(R.integer.config_videoSegmentMaxDuration) * 1000,
+                res.getBoolean(R.bool.config_videoSegmentedRecording)
+                        ? mVideoSegmentListener : null);
+
         // Setup output file
+        mVideoDateTaken = System.currentTimeMillis();
+        mVideoSegment = 0;
+        mVideoUri = null;
         generateVideoFilename(mProfile.fileFormat);
         mCameraManager.prepareVideoRecording(mVideoFilename, mProfile);
 
@@ -528,44 +666,50 @@ public class SnapshotManager {
         for (SnapshotListener listener : mListeners) {
             listener.onVideoRecordingStart();
         }
+
+        if (res.getBoolean(R.bool.config_videoSegmentedRecording)) {
+            mHandler.post(mPrepareNextSegmentRunnable);
+        }
     }
 
     /**
-     * Stops the current recording video, if any
+     * Stops the current recording video, if any. The recorder is stopped and the
+     * video added to the MediaStore in the background, by the VideoFinalizer.
      */
     public void stopVideo() {
         Log.v(TAG, "stopVideo");
         if (mIsRecording) {
-            // Stop the video in a thread to not stall the UI thread
-            new Thread() {
-                public void run() {
-                    mCameraManager.stopVideoRecording();
-
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            for (SnapshotListener listener : mListeners) {
-                                listener.onVideoRecordingStop();
-                                listener.onMediaSavingDone();
-                            }
-                        }
-                    });
-                }
-            }.start();
-
             mCurrentVideoFilename = mVideoFilename;
 
             mIsRecording = false;
 
+            // The segment prepared in advance won't be recorded
+            mCameraManager.cancelNextVideoSegment();
+            discardNextVideoSegment();
+
             for (SnapshotListener listener : mListeners) {
                 listener.onVideoRecordingStop();
                 listener.onMediaSavingStart();
             }
 
-            addVideoToMediaStore();
+            finalizeVideo();
         }
     }
 
+    /**
+     * Deletes the file and the MediaStore entry of the segment prepared in advance
+     */
+    private void discardNextVideoSegment() {
+        if (mNextVideoFilename == null) {
+            return;
+        }
+
+        new File(mNextVideoFilename).delete();
+        mVideoNamer.discardUri();
+        mNextVideoFilename = null;
+        mNextVideoValues = null;
+    }
+
     /**
      * Returns whether or not a video is recording
      */
@@ -574,61 +718,162 @@ public class SnapshotManager {
     }
 
     /**
-     * Add the last recorded video to the MediaStore
+     * Queues the last recorded video in the VideoFinalizer, which adds it to
+     * the MediaStore
+     */
+    private void finalizeVideo() {
+        Uri uri = takeVideoUri();
+
+        mVideoFinalizer.finalizeVideo(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraManager.stopVideoRecording();
+                    }
+                }, mCurrentVideoFilename, uri, mCurrentVideoValues,
+                new VideoFinalizer.Listener() {
+                    @Override
+                    public void onRecorderStopped() {
+                        for (SnapshotListener listener : mListeners) {
+                            listener.onVideoRecordingStop();
+                        }
+                    }
+
+                    @Override
+                    public void onVideoFinalized(Uri uri, String path) {
+                        mCurrentVideoUri = uri;
+                        mCurrentVideoFilename = (uri == null) ? null : path;
+                        Log.v(TAG, "Current video URI: " + mCurrentVideoUri);
+
+                        for (SnapshotListener listener : mListeners) {
+                            listener.onMediaSavingDone();
+                        }
+                    }
+                });
+        mCurrentVideoValues = null;
+    }
+
+    /**
+     * Sets the duration of the segment being recorded, and takes its MediaStore entry
      *
-     * @return True if operation succeeded
+     * @return The MediaStore entry of the segment, or null if it's not indexed
      */
-    private boolean addVideoToMediaStore() {
-        boolean fail = false;
-        if (mVideoFileDescriptor == null) {
-            mCurrentVideoValues.put(MediaStore.Video.Media.SIZE,
-                    new File(mCurrentVideoFilename).length());
-            long duration = SystemClock.uptimeMillis() - mRecordingStartTime;
-            if (duration > 0) {
-                mCurrentVideoValues.put(MediaStore.Video.Media.DURATION, duration);
-            } else {
-                Log.w(TAG, "Video duration <= 0 : " + duration);
+    private Uri takeVideoUri() {
+        if (mVideoFileDescriptor != null) {
+            return null;
+        }
+
+        long duration = SystemClock.uptimeMillis() - mRecordingStartTime;
+        if (duration > 0) {
+            mCurrentVideoValues.put(MediaStore.Video.Media.DURATION, duration);
+        } else {
+            Log.w(TAG, "Video duration <= 0 : " + duration);
+        }
+
+        if (mVideoUri == null) {
+            // The entry was inserted when the recording started, so this doesn't
+            // wait. It must be taken now, before the next recording prepares its own.
+            mVideoUri = mVideoNamer.getUri();
+        }
+        Uri uri = mVideoUri;
+        mVideoUri = null;
+        return uri;
+    }
+
+    // Runs in main thread, shortly after a segment started recording
+    private Runnable mPrepareNextSegmentRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mIsRecording || mNextVideoFilename != null) {
+                return;
+            }
+
+            // Take the entry of the segment being recorded before the namer
+            // prepares the one of the next segment
+            if (mVideoUri == null && mVideoFileDescriptor == null) {
+                mVideoUri = mVideoNamer.getUri();
             }
-            try {
-                mCurrentVideoUri = mVideoNamer.getUri();
-
-                // Rename the video file to the final name. This avoids other
-                // apps reading incomplete data.  We need to do it after the
-                // above mVideoNamer.getUri() call, so we are certain that the
-                // previous insert to MediaProvider is completed.
-                String finalName = mCurrentVideoValues.getAsString(
-                        MediaStore.Video.Media.DATA);
-                if (new File(mCurrentVideoFilename).renameTo(new File(finalName))) {
-                    mCurrentVideoFilename = finalName;
-                }
 
-                mContentResolver.update(mCurrentVideoUri, mCurrentVideoValues
-                        , null, null);
-                mContext.sendBroadcast(new Intent(Util.ACTION_NEW_VIDEO,
-                        mCurrentVideoUri));
-            } catch (Exception e) {
-                // We failed to insert into the database. This can happen if
-                // the SD card is unmounted.
-                Log.e(TAG, "failed to add video to media store", e);
-                mCurrentVideoUri = null;
-                mCurrentVideoFilename = null;
-                fail = true;
-            } finally {
-                Log.v(TAG, "Current video URI: " + mCurrentVideoUri);
+            final String filename = mVideoFilename;
+            final ContentValues values = mCurrentVideoValues;
+            mVideoSegment++;
+            generateVideoFilename(mProfile.fileFormat);
+            mNextVideoFilename = mVideoFilename;
+            mNextVideoValues = mCurrentVideoValues;
+            mVideoFilename = filename;
+            mCurrentVideoValues = values;
+
+            if (!mCameraManager.prepareNextVideoSegment(mNextVideoFilename, mProfile)) {
+                Log.w(TAG, "Unable to prepare the next video segment");
+                discardNextVideoSegment();
             }
         }
-        mCurrentVideoValues = null;
-        return fail;
-    }
+    };
+
+    private CameraManager.VideoSegmentListener mVideoSegmentListener =
+            new CameraManager.VideoSegmentListener() {
+        @Override
+        public void onVideoSegmentLimitReached() {
+            if (!mIsRecording) {
+                return;
+            }
+
+            // Don't read the filesystem here, every millisecond is a gap in the
+            // video: the size limit of the next segment was set from a fresh value
+            // when it was prepared, this only catches space lost since
+            long space = StorageMonitor.getSingleton().getAvailableSpace();
+            if (mNextVideoFilename == null
+                    || (space >= 0 && space <= Storage.LOW_STORAGE_THRESHOLD)) {
+                // No next segment, or no space left for it
+                Log.i(TAG, "Video segment limit reached, stopping the recording");
+                stopVideo();
+                return;
+            }
+
+            if (!mCameraManager.rolloverVideoRecording()) {
+                // The segment that just closed is complete, but the recording can't
+                // go on
+                Log.e(TAG, "Unable to start video segment " + (mVideoSegment + 1)
+                        + ", the recording ends with the segment that just closed");
+                stopVideo();
+                return;
+            }
+
+            // Index the segment that just closed, while the next one records. Its
+            // recorder is already stopped and released.
+            Uri uri = takeVideoUri();
+            Log.v(TAG, "Video segment " + mVideoSegment + " started, finalizing the previous");
+            mVideoFinalizer.finalizeVideo(new Runnable() {
+                @Override
+                public void run() {
+                    // Already stopped by rolloverVideoRecording
+                }
+            }, mVideoFilename, uri, mCurrentVideoValues, null);
+
+            mVideoFilename = mNextVideoFilename;
+            mCurrentVideoValues = mNextVideoValues;
+            mCurrentVideoValues.put(MediaStore.Video.Media.DATE_TAKEN,
+                    System.currentTimeMillis());
+            mNextVideoFilename = null;
+            mNextVideoValues = null;
+            mRecordingStartTime = SystemClock.uptimeMillis();
+
+            mHandler.post(mPrepareNextSegmentRunnable);
+        }
+    };
 
     /**
-     * Generates a filename for the next video to record
+     * Generates a filename for the next video to record, or for the next segment
+     * of the video being recorded
      *
      * @param outputFileFormat The file format of the video
      */
     private void generateVideoFilename(int outputFileFormat) {
-        long dateTaken = System.currentTimeMillis();
+        long dateTaken = mVideoDateTaken;
         String title = Util.createVideoName(dateTaken);
+        if (mVideoSegment > 0) {
+            // The segments of a video are named after its start
+            title += "_" + (mVideoSegment + 1);
+        }
         // Used when emailing.
         String filename = title + convertOutputFormatToFileExt(outputFileFormat);
         String mime = convertOutputFormatToMimeType(outputFileFormat);
@@ -668,21 +913,43 @@ public class SnapshotManager {
     }
 
     public void onPause() {
-        mPaused = true;
+        boolean processing;
+        synchronized (this) {
+            mPaused = true;
+            processing = mImageIsProcessing;
+
+            // The worker enhances the pictures already queued, then releases its
+            // GL context
+            if (mEnhanceWorker != null) {
+                mEnhanceWorker.shutdown();
+                mEnhanceWorker = null;
+            }
+        }
 
-        if (!mImageIsProcessing && mImageSaver != null) {
+        if (!processing && mImageSaver != null) {
             // We wait until the last processing image was saved
             mImageSaver.finish();
         }
         mImageNamer.finish();
         mVideoNamer.finish();
-        mImageSaver = null;
+        // Pictures saved from now on (if an image is still processing) are indexed
+        // right away by the finished indexer
+        mMediaIndexer.finish();
+        if (!processing) {
+            // Otherwise, the saver is finished once the last picture is enhanced
+            mImageSaver = null;
+        }
         mImageNamer = null;
         mVideoNamer = null;
+
+        // The videos being finalized still are, then the finalizer thread stops
+        mVideoFinalizer.shutdown();
     }
 
     public void onResume() {
-        mPaused = false;
+        synchronized (this) {
+            mPaused = false;
+        }
 
         // Restore threads if needed
         if (mImageSaver == null) {
@@ -690,12 +957,33 @@ public class SnapshotManager {
         }
 
         if (mImageNamer == null) {
-            mImageNamer = new ImageNamer();
+            mImageNamer = createImageNamer();
         }
 
         if (mVideoNamer == null) {
             mVideoNamer = new VideoNamer();
         }
+
+        // The previous indexer was finished by onPause, unless we're resumed without
+        // having been paused: make sure its thread is stopped and joined either way
+        if (mMediaIndexer != null) {
+            mMediaIndexer.finish();
+        }
+        mMediaIndexer = createMediaIndexer();
+
+        // Other apps may have written or deleted files meanwhile
+        StorageMonitor.getSingleton().refreshAsync();
+    }
+
+    private ImageNamer createImageNamer() {
+        return new ImageNamer(
+                mContext.getResources().getInteger(R.integer.config_imageNamerPoolSize));
+    }
+
+    private MediaIndexer createMediaIndexer() {
+        return new MediaIndexer(mContext,
+                mContext.getResources().getInteger(R.integer.config_mediaIndexerBatchSize),
+                mContext.getResources().getInteger(R.integer.config_mediaIndexerFlushDelay));
     }
 
     // Each SaveRequest remembers the data needed to save an image.
@@ -706,53 +994,98 @@ public class SnapshotManager {
         Location loc;
         int width, height;
         int orientation;
-        List<Tag> exifTags;
         SnapshotInfo snap;
+        int shotKind;
+        long ticket;
+        boolean saved;
     }
 
     // We use a queue to store the SaveRequests that have not been completed
-    // yet. The main thread puts the request into the queue. The saver thread
-    // gets it from the queue, does the work, and removes it from the queue.
+    // yet. The main thread puts the request into the queue. The saver threads
+    // get them from the queue, do the work, and remove them from the queue.
     //
-    // The main thread needs to wait for the saver thread to finish all the work
+    // The main thread needs to wait for the saver threads to finish all the work
     // in the queue, when the activity's onPause() is called, we need to finish
     // all the work, so other programs (like Gallery) can see all the images.
     //
-    // If the queue becomes too long, adding a new request will block the main
-    // thread until the queue length drops below the threshold (QUEUE_LIMIT).
-    // If we don't do this, we may face several problems: (1) We may OOM
-    // because we are holding all the jpeg data in memory. (2) We may ANR
-    // when we need to wait for saver thread finishing all the work (in
-    // onPause() or gotoGallery()) because the time to finishing a long queue
-    // of work may be too long.
-    private class ImageSaver extends Thread {
-        private static final int QUEUE_LIMIT = 3;
-
-        private ArrayList<SaveRequest> mQueue;
-        private boolean mStop;
+    // The queue is bounded by the amount of JPEG data it holds, so that we don't
+    // OOM, nor ANR when waiting for a long queue of work in onPause(). Adding a
+    // request never blocks the caller (usually the camera callback thread): when
+    // the queue is full, the overflow policy decides whether older intermediate
+    // shots are dropped, or the new request is refused. User-visible shots are
+    // saved before intermediate ones (HDR brackets, PicSphere tiles).
+    //
+    // Several saver threads write files concurrently (so that a burst isn't capped
+    // by one storage round-trip per shot), but onSnapshotSaved is always called in
+    // the order the requests were added.
+    private class ImageSaver {
+        private BoundedSaveQueue<SaveRequest> mQueue;
+        private Thread[] mWorkers;
+
+        // Completed requests waiting for the previous ones, by ticket
+        private final Map<Long, SaveRequest> mCompleted = new HashMap<Long, SaveRequest>();
+        private long mNextTicket;
+        private long mNextCompletedTicket;
 
         // Runs in main thread
         public ImageSaver() {
-            mQueue = new ArrayList<SaveRequest>();
-            start();
+            mQueue = new BoundedSaveQueue<SaveRequest>(
+                    mContext.getResources().getInteger(R.integer.config_imageSaverQueueSizeMb)
+                            * 1024L * 1024L,
+                    mContext.getResources().getInteger(R.integer.config_imageSaverOverflowPolicy));
+            mQueue.setListener(new BoundedSaveQueue.Listener<SaveRequest>() {
+                @Override
+                public void onRequestDropped(SaveRequest r) {
+                    Log.w(TAG, "Save queue full, dropping " + r.title);
+                    if (r.uri != null) {
+                        Storage.getStorage().deleteImage(mContentResolver, r.uri);
+                        CaptureJournal.getSingleton().record(CaptureJournal.STAGE_DONE, r.uri);
+                    }
+                    complete(r);
+                }
+            });
+
+            int count = mContext.getResources().getInteger(R.integer.config_imageSaverThreads);
+            if (count <= 0) {
+                count = Runtime.getRuntime().availableProcessors();
+            }
+            mWorkers = new Thread[count];
+            for (int i = 0; i < count; i++) {
+                mWorkers[i] = new Thread("ImageSaver-" + i) {
+                    @Override
+                    public void run() {
+                        saveLoop();
+                    }
+                };
+                mWorkers[i].start();
+            }
         }
 
-        // Runs in main thread
-        public void addImage(final byte[] data, Uri uri, String title,
-                             Location loc, int width, int height, int orientation, SnapshotInfo snap) {
-            addImage(data, uri, title, loc, width, height, orientation, null, snap);
+        /**
+         * @return The number of threads saving images concurrently
+         */
+        public int getThreadCount() {
+            return mWorkers.length;
         }
 
         // Runs in main thread
-        public void addImage(final byte[] data, Uri uri, String title,
+        public boolean addImage(final byte[] data, Uri uri, String title,
                              Location loc, int width, int height, int orientation) {
-           addImage(data, uri, title, loc, width, height, orientation, null, null);
+            return addImage(data, uri, title, loc, width, height, orientation, null);
+        }
+
+        // Runs in main thread
+        public boolean addImage(final byte[] data, Uri uri, String title,
+                             Location loc, int width, int height, int orientation,
+                             SnapshotInfo snap) {
+            return addImage(data, uri, title, loc, width, height, orientation, snap,
+                    (snap != null) ? snap.mShotKind : StorageMonitor.SHOT_NORMAL);
         }
 
         // Runs in main thread
-        public void addImage(final byte[] data, Uri uri, String title,
+        public boolean addImage(final byte[] data, Uri uri, String title,
                              Location loc, int width, int height, int orientation,
-                             List<Tag> exifTags, SnapshotInfo snap) {
+                             SnapshotInfo snap, int shotKind) {
             SaveRequest r = new SaveRequest();
             r.data = data;
             r.uri = uri;
@@ -761,133 +1094,211 @@ public class SnapshotManager {
             r.width = width;
             r.height = height;
             r.orientation = orientation;
-            r.exifTags = exifTags;
             r.snap = snap;
-            synchronized (this) {
-                while (mQueue.size() >= QUEUE_LIMIT) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
+            r.shotKind = shotKind;
+            synchronized (mCompleted) {
+                r.ticket = mNextTicket++;
+            }
+
+            final int lane = (snap != null && snap.mIntermediate)
+                    ? BoundedSaveQueue.LANE_INTERMEDIATE : BoundedSaveQueue.LANE_USER;
+            if (!mQueue.offer(r, lane, data.length)) {
+                Log.e(TAG, "Save queue full or closed, couldn't save " + title);
+                if (uri != null) {
+                    Storage.getStorage().deleteImage(mContentResolver, uri);
+                    CaptureJournal.getSingleton().record(CaptureJournal.STAGE_DONE, uri);
                 }
-                mQueue.add(r);
-                notifyAll();  // Tell saver thread there is new work to do.
+                complete(r);
+                return false;
             }
+
+            return true;
         }
 
-        // Runs in saver thread
-        @Override
-        public void run() {
+        // Runs in saver threads
+        private void saveLoop() {
             while (true) {
                 SaveRequest r;
-                synchronized (this) {
-                    if (mQueue.isEmpty()) {
-                        notifyAll();  // notify main thread in waitDone
-
-                        // Note that we can only stop after we saved all images
-                        // in the queue.
-                        if (mStop) break;
+                try {
+                    r = mQueue.take();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                if (r == null) {
+                    // Closed, and all the images in the queue are saved
+                    break;
+                }
 
-                        try {
-                            wait();
-                        } catch (InterruptedException ex) {
-                            // ignore.
+                for (SnapshotListener listener : mListeners) {
+                    listener.onMediaSavingStart();
+                }
+                try {
+                    if (r.snap != null && r.snap.mIntermediate) {
+                        // Staged in the app's files dir, out of the storage monitored
+                        r.saved = stageImage(r.data, r.snap);
+                        complete(r);
+                    } else {
+                        // The listeners read the entry (orientation, size...) as soon as
+                        // they hear of it: once saved, it's completed by the indexer
+                        final SaveRequest request = r;
+                        r.saved = storeImage(r.data, r.uri, r.title, r.loc, r.width,
+                                r.height, r.orientation, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // May run before storeImage() returns
+                                        request.saved = true;
+                                        complete(request);
+                                    }
+                                });
+                        if (r.saved) {
+                            StorageMonitor.getSingleton().onShotWritten(r.shotKind,
+                                    r.data.length);
+                        } else {
+                            complete(r);
                         }
-                        continue;
-                    }
-                    r = mQueue.get(0);
-                    for (SnapshotListener listener : mListeners) {
-                        listener.onMediaSavingStart();
                     }
+                } finally {
+                    mQueue.done(r.data.length);
                 }
-                storeImage(r.data, r.uri, r.title, r.loc, r.width, r.height,
-                        r.orientation, r.exifTags, r.snap);
-                synchronized (this) {
-                    mQueue.remove(0);
-                    for (SnapshotListener listener : mListeners) {
-                        listener.onMediaSavingDone();
-                    }
-                    notifyAll();  // the main thread may wait in addImage
+                for (SnapshotListener listener : mListeners) {
+                    listener.onMediaSavingDone();
                 }
             }
         }
 
-        // Runs in main thread
-        public void waitDone() {
-            synchronized (this) {
-                while (!mQueue.isEmpty()) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
+        /**
+         * Marks a request as completed (saved or not), and notifies the listeners of
+         * all the saved snapshots that are now in order.
+         */
+        private void complete(SaveRequest r) {
+            synchronized (mCompleted) {
+                mCompleted.put(r.ticket, r);
+
+                SaveRequest next;
+                while ((next = mCompleted.remove(mNextCompletedTicket)) != null) {
+                    mNextCompletedTicket++;
+                    if (next.saved && next.snap != null) {
+                        for (SnapshotListener listener : mListeners) {
+                            listener.onSnapshotSaved(next.snap);
+                        }
                     }
                 }
             }
         }
 
+        // Runs in main thread
+        public void waitDone() {
+            mQueue.waitDone();
+        }
+
         // Runs in main thread
         public void finish() {
             waitDone();
-            synchronized (this) {
-                mStop = true;
-                notifyAll();
-            }
-            try {
-                join();
-            } catch (InterruptedException ex) {
-                // ignore.
+            // Not interrupting the workers: an interrupt would close the channel of
+            // a picture being written, and lose it
+            mQueue.close(mWorkers.length);
+            for (Thread worker : mWorkers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
             }
         }
 
-        // Runs in saver thread
-        private void storeImage(final byte[] data, Uri uri, String title,
+        // Runs in saver threads
+        // onIndexed is run once the MediaStore entry is complete, if the file was saved
+        private boolean storeImage(final byte[] data, Uri uri, String title,
                                 Location loc, int width, int height, int orientation,
-                                List<Tag> exifTags, SnapshotInfo snap) {
-            boolean ok = Storage.getStorage().updateImage(mContentResolver, uri, title, loc,
-                    orientation, data, width, height);
+                                Runnable onIndexed) {
+            if (uri == null) {
+                // Without a MediaStore entry, there's no title to write the file
+                // under, and nothing the listeners could show
+                Log.e(TAG, "No MediaStore entry for this shot, it can't be saved");
+                return false;
+            }
 
-            if (ok) {
-                if (exifTags != null && exifTags.size() > 0) {
-                    // Write exif tags to final picture
-                    try {
-                        ExifInterface exifIf = new ExifInterface(Util.getRealPathFromURI(mContext, uri));
+            // The MediaStore entry must have been renamed after the shot first
+            ImageNamer namer = mImageNamer;
+            if (namer != null) {
+                namer.waitRenamed(uri);
+            }
 
-                        for (Tag tag : exifTags) {
-                            // move along
-                            String[] hack = tag.toString().split("\\]");
-                            hack = hack[1].split("-");
-                            exifIf.setAttribute(tag.getTagName(), hack[1].trim());
-                        }
+            // The file is written right away, but the MediaStore entry is completed
+            // (and the picture broadcast) by the write-behind indexer. If we die in
+            // between, the journal has what's needed to complete it on the next start.
+            Storage storage = Storage.getStorage();
+            CaptureJournal journal = CaptureJournal.getSingleton();
+            journal.record(CaptureJournal.STAGE_SAVING, uri, title, width, height,
+                    orientation);
+            boolean ok = storage.writeImage(title, ByteBuffer.wrap(data));
 
-                        exifIf.saveAttributes();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Couldn't write exif", e);
-                    }
-                }
+            if (ok) {
+                mMediaIndexer.update(uri, storage.getImageValues(title, loc, orientation,
+                        data.length, width, height), true, onIndexed);
+            } else {
+                storage.deleteImage(mContentResolver, uri);
+                journal.record(CaptureJournal.STAGE_DONE, uri);
+            }
 
-                Util.broadcastNewPicture(mContext, uri);
+            return ok;
+        }
 
-                if (snap != null) {
-                    for (SnapshotListener listener : mListeners) {
-                        listener.onSnapshotSaved(snap);
-                    }
-                }
+        // Runs in saver threads
+        private boolean stageImage(final byte[] data, SnapshotInfo snap) {
+            Uri uri = StagingStore.getSingleton(mContext).stage(data);
+            if (uri == null) {
+                return false;
             }
+
+            // Published to the listeners by complete(), from this thread
+            snap.mUri = uri;
+            return true;
         }
     }
 
+    // The ImageNamer reserves MediaStore entries in the background, so that getUri()
+    // can hand one out right away instead of waiting for an insert. An entry is only
+    // reserved once a shot asks for it (prepareUri, at the shutter), and at most
+    // mPoolSize are reserved for the shots in flight: reserved entries have no file
+    // yet, and gallery apps would show them as broken pictures if they were kept
+    // while the camera is idle. When an entry is handed out, it's renamed after the
+    // time of the shot, in the background. The saver must wait for this rename
+    // (waitRenamed) before writing the file. The entries still unused when the namer
+    // finishes are deleted.
     private static class ImageNamer extends Thread {
-        private boolean mRequestPending;
+        // Delay before inserting again after an insert failed, doubled after each
+        // failure in a row
+        private final static long INSERT_RETRY_DELAY = 500;
+        private final static long INSERT_RETRY_MAX_DELAY = 8000;
+
+        private static class Reservation {
+            Uri uri;
+            String title;
+            long dateTaken;
+        }
+
+        private final int mPoolSize;
+        private final ArrayList<Reservation> mPool = new ArrayList<Reservation>();
+        private final ArrayList<Reservation> mRenames = new ArrayList<Reservation>();
         private ContentResolver mResolver;
         private long mDateTaken;
         private int mWidth, mHeight;
         private boolean mStop;
-        private Uri mUri;
+        private boolean mWorking;
+        // Set while the MediaStore refuses our inserts
+        private boolean mInsertFailing;
+        private long mRetryDelay = INSERT_RETRY_DELAY;
+        // Shots that called prepareUri() and didn't take their entry yet
+        private int mWanted;
         private String mTitle;
+        // Number of titles handed out for each base title (one per second)
+        private final HashMap<String, Integer> mTitleCounts = new HashMap<String, Integer>();
+        private int mPlaceholderCount;
 
         // Runs in main thread
-        public ImageNamer() {
+        public ImageNamer(int poolSize) {
+            mPoolSize = Math.max(1, poolSize);
             start();
         }
 
@@ -899,18 +1310,20 @@ public class SnapshotManager {
                 width = height;
                 height = tmp;
             }
-            mRequestPending = true;
             mResolver = resolver;
             mDateTaken = dateTaken;
             mWidth = width;
             mHeight = height;
+            mWanted++;
             notifyAll();
         }
 
         // Runs in main thread
         public synchronized Uri getUri() {
-            // wait until the request is done.
-            while (mRequestPending) {
+            // We only wait if the pool isn't filled yet, or was exhausted. If the
+            // MediaStore doesn't take our inserts, don't block the shot on it.
+            while (mPool.isEmpty() && !mStop && mResolver != null && !mInsertFailing
+                    && mWanted > 0) {
                 try {
                     wait();
                 } catch (InterruptedException ex) {
@@ -918,10 +1331,26 @@ public class SnapshotManager {
                 }
             }
 
-            // Return the uri generated
-            Uri uri = mUri;
-            mUri = null;
-            return uri;
+            if (mWanted > 0) {
+                mWanted--;
+            }
+            if (mPool.isEmpty()) {
+                Log.e(TAG, "No MediaStore entry available for this shot");
+                mTitle = null;
+                notifyAll();
+                return null;
+            }
+
+            // Hand out a reservation, and rename it after this shot
+            Reservation r = mPool.remove(0);
+            r.dateTaken = (mDateTaken != 0) ? mDateTaken : System.currentTimeMillis();
+            r.title = createUniqueTitle(r.dateTaken);
+            mRenames.add(r);
+            CaptureJournal.getSingleton().record(CaptureJournal.STAGE_NAMED, r.uri, r.title);
+            mTitle = r.title;
+            mDateTaken = 0;
+            notifyAll();
+            return r.uri;
         }
 
         // Runs in main thread, should be called after getUri().
@@ -929,50 +1358,166 @@ public class SnapshotManager {
             return mTitle;
         }
 
+        // Runs in saver threads, waits until the entry handed out with this uri
+        // has been renamed.
+        public synchronized void waitRenamed(Uri uri) {
+            while (isRenamePending(uri)) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+        }
+
+        private boolean isRenamePending(Uri uri) {
+            for (Reservation r : mRenames) {
+                if (r.uri.equals(uri)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         // Runs in namer thread
         @Override
-        public synchronized void run() {
+        public void run() {
             while (true) {
-                if (mStop) break;
-                if (!mRequestPending) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
+                Reservation rename = null;
+                ContentResolver resolver;
+                long dateTaken;
+                int width, height;
+                String title = null;
+
+                synchronized (this) {
+                    mWorking = false;
+                    notifyAll();
+
+                    resolver = mResolver;
+                    boolean fill = !mStop && resolver != null
+                            && mPool.size() < Math.min(mWanted, mPoolSize);
+                    if (!mRenames.isEmpty()) {
+                        rename = mRenames.get(0);
+                    } else if (mStop) {
+                        break;
+                    } else if (!fill) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                        continue;
+                    }
+
+                    mWorking = true;
+                    dateTaken = System.currentTimeMillis();
+                    width = mWidth;
+                    height = mHeight;
+                    if (rename == null) {
+                        title = createPlaceholderTitle(dateTaken);
+                    }
+                }
+
+                // Talk to the MediaStore without holding the lock, so that getUri()
+                // never waits for it
+                if (rename != null) {
+                    Storage.getStorage().renameImage(resolver, rename.uri,
+                            rename.title, rename.dateTaken);
+                    synchronized (this) {
+                        mRenames.remove(rename);
+                    }
+                } else {
+                    Reservation r = new Reservation();
+                    r.title = title;
+                    r.uri = Storage.getStorage().newImage(resolver, title, dateTaken,
+                            width, height);
+                    if (r.uri != null) {
+                        CaptureJournal.getSingleton().record(CaptureJournal.STAGE_RESERVED,
+                                r.uri, r.title);
+                        synchronized (this) {
+                            mPool.add(r);
+                            mInsertFailing = false;
+                            mRetryDelay = INSERT_RETRY_DELAY;
+                        }
+                    } else {
+                        waitBeforeRetry();
                     }
-                    continue;
                 }
-                cleanOldUri();
-                generateUri();
-                mRequestPending = false;
-                notifyAll();
             }
-            cleanOldUri();
+
+            cleanUnusedUris();
         }
 
-        // Runs in main thread
+        // Runs in namer thread
+        // The MediaStore is not available (e.g. the storage is being mounted): let
+        // getUri() return null meanwhile, and try again later instead of spinning
+        private synchronized void waitBeforeRetry() {
+            Log.w(TAG, "Unable to reserve a MediaStore entry, retrying in "
+                    + mRetryDelay + "ms");
+            mInsertFailing = true;
+            notifyAll();
+
+            final long until = System.currentTimeMillis() + mRetryDelay;
+            long remaining;
+            while (!mStop && mRenames.isEmpty()
+                    && (remaining = until - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+            mRetryDelay = Math.min(mRetryDelay * 2, INSERT_RETRY_MAX_DELAY);
+        }
+
+        // Runs in main thread, stops the namer once the pending renames are done.
+        // The unused entries of the pool are then deleted in the namer thread.
         public synchronized void finish() {
             mStop = true;
             notifyAll();
+            while (!mRenames.isEmpty() || mWorking) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
         }
 
         // Runs in namer thread
-        private void generateUri() {
-            mTitle = Util.createJpegName(mDateTaken);
-            mUri = Storage.getStorage().newImage(mResolver, mTitle, mDateTaken, mWidth, mHeight);
+        private void cleanUnusedUris() {
+            ArrayList<Reservation> unused;
+            synchronized (this) {
+                unused = new ArrayList<Reservation>(mPool);
+                mPool.clear();
+            }
+            for (Reservation r : unused) {
+                Storage.getStorage().deleteImage(mResolver, r.uri);
+                CaptureJournal.getSingleton().record(CaptureJournal.STAGE_DONE, r.uri);
+            }
         }
 
-        // Runs in namer thread
-        private void cleanOldUri() {
-            if (mUri == null) return;
-            Storage.getStorage().deleteImage(mResolver, mUri);
-            mUri = null;
+        // Several shots can be taken in the same second, give them distinct names.
+        // Every title handed out is remembered, so that shots named out of order
+        // still never get the name of another one.
+        private String createUniqueTitle(long dateTaken) {
+            String title = Util.createJpegName(dateTaken);
+            Integer count = mTitleCounts.get(title);
+            mTitleCounts.put(title, (count == null) ? 1 : count + 1);
+            return (count == null) ? title : title + "_" + count;
+        }
+
+        // Reserved entries get a hidden, clearly temporary name until they're handed
+        // out: deleting an unused one must never delete a real picture.
+        private String createPlaceholderTitle(long dateTaken) {
+            return ".pending_" + dateTaken + "_" + (mPlaceholderCount++);
         }
     }
 
 
     private static class VideoNamer extends Thread {
         private boolean mRequestPending;
+        private boolean mDiscardPending;
         private ContentResolver mResolver;
         private ContentValues mValues;
         private boolean mStop;
@@ -987,11 +1532,19 @@ public class SnapshotManager {
         public synchronized void prepareUri(
                 ContentResolver resolver, ContentValues values) {
             mRequestPending = true;
+            // The previous entry is deleted anyway before the new one is inserted
+            mDiscardPending = false;
             mResolver = resolver;
             mValues = new ContentValues(values);
             notifyAll();
         }
 
+        // Runs in main thread, deletes the entry prepared and not taken with getUri()
+        public synchronized void discardUri() {
+            mDiscardPending = true;
+            notifyAll();
+        }
+
         // Runs in main thread
         public synchronized Uri getUri() {
             // wait until the request is done.
@@ -1013,6 +1566,11 @@ public class SnapshotManager {
             while (true) {
                 if (mStop) break;
                 if (!mRequestPending) {
+                    if (mDiscardPending) {
+                        cleanOldUri();
+                        mDiscardPending = false;
+                        continue;
+                    }
                     try {
                         wait();
                     } catch (InterruptedException ex) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Staging area for intermediate shots (HDR brackets, PicSphere tiles). These shots
+ * are only inputs of another picture, so instead of going through the gallery (and
+ * being removed from it afterwards), they are written to memory-mapped files in the
+ * app's private files dir, and never touch the MediaStore.
+ *
+ * Staged frames are designated by file URIs, so that the stitchers can read them
+ * either by path, or directly from a mapped region with map(). The index of the
+ * staged frames only lives in memory: frames left over by a previous process are
+ * useless, and are deleted when the store is created.
+ */
+public class StagingStore {
+    public final static String TAG = "StagingStore";
+
+    private final static String DIRECTORY = "staging";
+
+    private static StagingStore sSingleton;
+
+    private final File mDirectory;
+    // Staged frames, by path
+    private final Map<String, Long> mIndex = new HashMap<String, Long>();
+    private long mStagedBytes;
+    private int mNextId;
+
+    public static synchronized StagingStore getSingleton(Context context) {
+        if (sSingleton == null) {
+            sSingleton = new StagingStore(
+                    new File(context.getApplicationContext().getFilesDir(), DIRECTORY));
+        }
+
+        return sSingleton;
+    }
+
+    private StagingStore(File directory) {
+        mDirectory = directory;
+        mDirectory.mkdirs();
+
+        File[] leftovers = mDirectory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a frame in the staging area
+     *
+     * @param data The JPEG data of the frame
+     * @return The file URI of the staged frame, or null if it couldn't be written
+     */
+    public Uri stage(byte[] data) {
+        File file;
+        synchronized (this) {
+            file = new File(mDirectory, System.currentTimeMillis() + "_" + (mNextId++) + ".jpg");
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            // Mapping the file grows it to the right size, and the data is copied
+            // straight into the page cache: there's no write call to wait for
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, data.length);
+            buffer.put(data);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to stage frame " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            close(raf);
+        }
+
+        synchronized (this) {
+            mIndex.put(file.getAbsolutePath(), (long) data.length);
+            mStagedBytes += data.length;
+        }
+        return Uri.fromFile(file);
+    }
+
+    /**
+     * @param uri A URI
+     * @return True if the URI designates a frame of the staging area
+     */
+    public synchronized boolean isStaged(Uri uri) {
+        return uri != null && "file".equals(uri.getScheme())
+                && mIndex.containsKey(uri.getPath());
+    }
+
+    /**
+     * Maps a staged frame in memory, for reading
+     *
+     * @param uri The URI of the staged frame
+     * @return The read-only mapped frame, or null if it isn't staged or can't be read
+     */
+    public MappedByteBuffer map(Uri uri) {
+        if (!isStaged(uri)) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(uri.getPath(), "r");
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid once the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to map staged frame " + uri, e);
+            return null;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Removes a frame from the staging area
+     *
+     * @param uri The URI of the staged frame
+     */
+    public void remove(Uri uri) {
+        synchronized (this) {
+            if (!isStaged(uri)) {
+                return;
+            }
+            mStagedBytes -= mIndex.remove(uri.getPath());
+        }
+
+        if (!new File(uri.getPath()).delete()) {
+            Log.w(TAG, "Failed to delete staged frame " + uri);
+        }
+    }
+
+    /**
+     * @return The amount of bytes currently staged
+     */
+    public synchronized long getStagedBytes() {
+        return mStagedBytes;
+    }
+
+    private static void close(RandomAccessFile file) {
+        try {
+            if (file != null) file.close();
+        } catch (IOException e) {
+            // Do nothing here
+        }
+    }
+}
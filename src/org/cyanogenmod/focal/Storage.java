@@ -33,7 +33,14 @@ import android.provider.MediaStore.MediaColumns;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -43,9 +50,20 @@ public class Storage {
     public static final long UNKNOWN_SIZE = -3L;
     public static final long LOW_STORAGE_THRESHOLD = 50000000;
 
+    // Files are never synced, the kernel flushes them when it wants
+    public static final int SYNC_NONE = 0;
+    // Each file is synced to the storage before being renamed to its final name
+    public static final int SYNC_EACH_FILE = 1;
+    // Files are synced by batches, once every N files
+    public static final int SYNC_BATCHED = 2;
+
     private String mRoot = Environment.getExternalStorageDirectory().toString();
     private static Storage sStorage;
 
+    private volatile int mSyncPolicy = SYNC_NONE;
+    private int mSyncBatchSize = 1;
+    private final List<String> mUnsyncedFiles = new ArrayList<String>();
+
     // Singleton
     private Storage() {
         // Do nothing here
@@ -63,6 +81,22 @@ public class Storage {
         mRoot = root;
     }
 
+    /**
+     * Sets when written files are synced to the storage
+     *
+     * @param policy One of SYNC_NONE, SYNC_EACH_FILE or SYNC_BATCHED
+     * @param batchSize For SYNC_BATCHED, the number of files written between two syncs
+     */
+    public void setSyncPolicy(int policy, int batchSize) {
+        synchronized (mUnsyncedFiles) {
+            mSyncPolicy = policy;
+            mSyncBatchSize = Math.max(1, batchSize);
+            if (policy != SYNC_BATCHED) {
+                syncPendingFiles();
+            }
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     private static void setImageSize(ContentValues values, int width, int height) {
         values.put(MediaColumns.WIDTH, width);
@@ -70,20 +104,99 @@ public class Storage {
     }
 
     public String writeFile(String title, byte[] data) {
+        return writeFile(title, ByteBuffer.wrap(data));
+    }
+
+    public String writeFile(String title, ByteBuffer data) {
         String path = generateFilepath(title);
-        FileOutputStream out = null;
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
-        } catch (Exception e) {
+            writeData(path, data);
+            onFileWritten(path);
+        } catch (IOException e) {
             Log.e(TAG, "Failed to write data", e);
+        }
+        return path;
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer (heap or direct) to a file, through
+     * its channel. With SYNC_EACH_FILE, the file is synced before being closed.
+     */
+    private void writeData(String path, ByteBuffer data) throws IOException {
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            if (mSyncPolicy == SYNC_EACH_FILE) {
+                channel.force(true);
+            }
         } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a file under a temporary name, then renames it to its final name, so
+     * that other apps never read incomplete data.
+     *
+     * @return True if the file has its final name and size
+     */
+    private boolean writeFileAtomically(String path, ByteBuffer data) {
+        final long size = data.remaining();
+        File tmpFile = new File(path + ".tmp");
+        File file = new File(path);
+        try {
+            writeData(tmpFile.getPath(), data);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write image", e);
+            tmpFile.delete();
+            return false;
+        }
+
+        if (!tmpFile.renameTo(file) || file.length() != size) {
+            Log.e(TAG, "Failed to rename " + tmpFile + " to " + file);
+            tmpFile.delete();
+            return false;
+        }
+
+        onFileWritten(path);
+        return true;
+    }
+
+    /**
+     * Applies the batched sync policy to a file that was just written
+     */
+    private void onFileWritten(String path) {
+        synchronized (mUnsyncedFiles) {
+            if (mSyncPolicy != SYNC_BATCHED) {
+                return;
+            }
+            mUnsyncedFiles.add(path);
+            if (mUnsyncedFiles.size() >= mSyncBatchSize) {
+                syncPendingFiles();
+            }
+        }
+    }
+
+    private void syncPendingFiles() {
+        for (String path : mUnsyncedFiles) {
+            RandomAccessFile file = null;
             try {
-                out.close();
-            } catch (Exception e) {
+                file = new RandomAccessFile(path, "rw");
+                file.getFD().sync();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to sync " + path, e);
+            } finally {
+                try {
+                    if (file != null) file.close();
+                } catch (IOException e) {
+                    // Do nothing here
+                }
             }
         }
-        return path;
+        mUnsyncedFiles.clear();
     }
 
     // Save the image and add it to media store.
@@ -172,29 +285,97 @@ public class Storage {
     public boolean updateImage(ContentResolver resolver, Uri uri,
             String title, Location location, int orientation, byte[] jpeg,
             int width, int height) {
+        return updateImage(resolver, uri, title, location, orientation,
+                ByteBuffer.wrap(jpeg), width, height);
+    }
+
+    public boolean updateImage(ContentResolver resolver, Uri uri,
+            String title, Location location, int orientation, ByteBuffer jpeg,
+            int width, int height) {
+        final int jpegLength = jpeg.remaining();
+
         // Save the image.
-        String path = generateFilepath(title);
-        String tmpPath = path + ".tmp";
-        FileOutputStream out = null;
+        if (!writeImage(title, jpeg)) {
+            return false;
+        }
+
+        ContentValues values = getImageValues(title, location, orientation,
+                jpegLength, width, height);
         try {
-            // Write to a temporary file and rename it to the final name. This
-            // avoids other apps reading incomplete data.
-            out = new FileOutputStream(tmpPath);
-            out.write(jpeg);
-            out.close();
-            new File(tmpPath).renameTo(new File(path));
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to write image", e);
+            resolver.update(uri, values, null, null);
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to update image (" + th + ") ; uri=" + uri + " values=" + values);
             return false;
+        }
+
+        return true;
+    }
+
+    // The file part of updateImage(): writes the image under its final name.
+    //
+    // Returns true if the file was written.
+    public boolean writeImage(String title, ByteBuffer jpeg) {
+        return writeFileAtomically(generateFilepath(title), jpeg);
+    }
+
+    // Moves an image that was already written elsewhere (for instance, rendered by
+    // an external tool) to its final name, instead of loading and writing it again.
+    // The file is renamed when it's on the same filesystem, otherwise it's copied by
+    // the kernel through FileChannel.transferTo() and the source is deleted.
+    //
+    // Returns the size of the image, or -1 if it couldn't be moved.
+    public long moveImage(String title, File source) {
+        final long size = source.length();
+        File file = new File(generateFilepath(title));
+
+        if (source.renameTo(file) && file.length() == size) {
+            onFileWritten(file.getPath());
+            return size;
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(tmpFile);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+            while (position < size) {
+                position += inChannel.transferTo(position, size - position, outChannel);
+            }
+            if (mSyncPolicy == SYNC_EACH_FILE) {
+                outChannel.force(true);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to copy " + source + " to " + tmpFile, e);
+            tmpFile.delete();
+            return -1;
         } finally {
             try {
-                out.close();
-            } catch (Exception e) {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            } catch (IOException e) {
                 // Do nothing here
             }
         }
 
-        // Insert into MediaStore.
+        if (!tmpFile.renameTo(file) || file.length() != size) {
+            Log.e(TAG, "Failed to rename " + tmpFile + " to " + file);
+            tmpFile.delete();
+            return -1;
+        }
+
+        source.delete();
+        onFileWritten(file.getPath());
+        return size;
+    }
+
+    // The MediaStore part of updateImage(): the values completing the partial
+    // data added by newImage().
+    public ContentValues getImageValues(String title, Location location,
+            int orientation, int jpegLength, int width, int height) {
         ContentValues values = new ContentValues(9);
         values.put(ImageColumns.TITLE, title);
         values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
@@ -202,7 +383,7 @@ public class Storage {
 
         // Clockwise rotation in degrees. 0, 90, 180, or 270.
         values.put(ImageColumns.ORIENTATION, orientation);
-        values.put(ImageColumns.SIZE, jpeg.length);
+        values.put(ImageColumns.SIZE, jpegLength);
 
         setImageSize(values, width, height);
 
@@ -211,14 +392,25 @@ public class Storage {
             values.put(ImageColumns.LONGITUDE, location.getLongitude());
         }
 
+        return values;
+    }
+
+    // Changes the title of an entry added by newImage(), before updateImage() is
+    // called. This lets entries be reserved ahead of the shots, then named after them.
+    //
+    // Returns true if the entry was renamed.
+    public boolean renameImage(ContentResolver resolver, Uri uri, String title,
+            long date) {
+        ContentValues values = new ContentValues(2);
+        values.put(ImageColumns.DATE_TAKEN, date);
+        values.put(ImageColumns.DATA, generateFilepath(title));
+
         try {
-            resolver.update(uri, values, null, null);
+            return resolver.update(uri, values, null, null) > 0;
         } catch (Throwable th) {
-            Log.e(TAG, "Failed to update image (" + th + ") ; uri=" + uri + " values=" + values);
+            Log.e(TAG, "Failed to rename image (" + th + ") ; uri=" + uri);
             return false;
         }
-
-        return true;
     }
 
     public void deleteImage(ContentResolver resolver, Uri uri) {
@@ -237,7 +429,7 @@ public class Storage {
         return generateDCIM() + "/Camera";
     }
 
-    private String generateFilepath(String title) {
+    public String generateFilepath(String title) {
         return generateDirectory() + '/' + title + ".jpg";
     }
 
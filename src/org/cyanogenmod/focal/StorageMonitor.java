@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps track of the free space on the storage, and forecasts how many shots can
+ * still be taken. The free space is read from the filesystem once, then updated
+ * from the bytes the app writes, and read again in the background when it gets
+ * old. Each kind of shot keeps a rolling average of its size, so that the shots
+ * remaining can be computed at any time without touching the filesystem.
+ */
+public class StorageMonitor {
+    public final static String TAG = "StorageMonitor";
+
+    // Kinds of shots
+    public final static int SHOT_NORMAL = 0;
+    public final static int SHOT_BURST = 1;
+    public final static int SHOT_HDR = 2;
+    public final static int SHOT_PANO = 3;
+    public final static int SHOT_PICSPHERE = 4;
+    private final static int SHOT_KIND_COUNT = 5;
+
+    // Estimated size of a shot, until we saved one
+    private final static long DEFAULT_BYTES_PER_SHOT = 3 * 1024 * 1024;
+
+    // Weight of a new shot in the rolling averages
+    private final static float AVERAGE_WEIGHT = 0.2f;
+
+    // The free space is read again from the filesystem after this delay, as other
+    // apps may write or delete files too
+    private final static long MAX_CACHE_AGE = 60 * 1000;
+
+    private static StorageMonitor sSingleton;
+
+    private final float[] mAverageBytes = new float[SHOT_KIND_COUNT];
+    private final int[] mShotCount = new int[SHOT_KIND_COUNT];
+    private long mAvailableSpace = Storage.UNKNOWN_SIZE;
+    private long mLastRefreshTime;
+    private boolean mRefreshing;
+
+    public static synchronized StorageMonitor getSingleton() {
+        if (sSingleton == null) {
+            sSingleton = new StorageMonitor();
+        }
+
+        return sSingleton;
+    }
+
+    /**
+     * Reads the free space from the filesystem right away. This must not be called
+     * from a time-sensitive thread.
+     *
+     * @return The free space, or one of Storage.UNAVAILABLE, PREPARING, UNKNOWN_SIZE
+     */
+    public long refresh() {
+        long space = Storage.getStorage().getAvailableSpace();
+        synchronized (this) {
+            mAvailableSpace = space;
+            mLastRefreshTime = SystemClock.uptimeMillis();
+        }
+        return space;
+    }
+
+    /**
+     * Reads the free space from the filesystem in the background
+     */
+    public void refreshAsync() {
+        synchronized (this) {
+            if (mRefreshing) {
+                return;
+            }
+            mRefreshing = true;
+        }
+
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } finally {
+                    synchronized (StorageMonitor.this) {
+                        mRefreshing = false;
+                    }
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Returns the cached free space. If it's too old, it's refreshed in the
+     * background for the next calls.
+     *
+     * @return The free space, or one of Storage.UNAVAILABLE, PREPARING, UNKNOWN_SIZE
+     */
+    public long getAvailableSpace() {
+        long space;
+        boolean stale;
+        synchronized (this) {
+            space = mAvailableSpace;
+            stale = mLastRefreshTime == 0
+                    || SystemClock.uptimeMillis() - mLastRefreshTime > MAX_CACHE_AGE;
+        }
+
+        if (stale) {
+            refreshAsync();
+        }
+        return space;
+    }
+
+    /**
+     * Records a file written by the app, that isn't a shot of its own (intermediate
+     * shots, videos).
+     *
+     * @param bytes The size of the file
+     */
+    public synchronized void onBytesWritten(long bytes) {
+        if (mAvailableSpace >= 0) {
+            mAvailableSpace = Math.max(0, mAvailableSpace - bytes);
+        }
+    }
+
+    /**
+     * Records a shot saved by the app
+     *
+     * @param kind The kind of shot, one of SHOT_*
+     * @param bytes The size of the shot
+     */
+    public synchronized void onShotWritten(int kind, long bytes) {
+        onBytesWritten(bytes);
+
+        if (mShotCount[kind] == 0) {
+            mAverageBytes[kind] = bytes;
+        } else {
+            mAverageBytes[kind] += (bytes - mAverageBytes[kind]) * AVERAGE_WEIGHT;
+        }
+        mShotCount[kind]++;
+    }
+
+    /**
+     * @param kind The kind of shot, one of SHOT_*
+     * @return The average size of this kind of shot, or an estimate if none was saved
+     */
+    public synchronized long getAverageShotSize(int kind) {
+        if (mShotCount[kind] > 0) {
+            return (long) mAverageBytes[kind];
+        } else if (mShotCount[SHOT_NORMAL] > 0) {
+            return (long) mAverageBytes[SHOT_NORMAL];
+        }
+        return DEFAULT_BYTES_PER_SHOT;
+    }
+
+    /**
+     * Forecasts how many shots can still be taken before the storage runs low
+     *
+     * @param kind The kind of shot, one of SHOT_*
+     * @return The number of shots, or -1 if the free space isn't known
+     */
+    public long getShotsRemaining(int kind) {
+        long space = getAvailableSpace();
+        if (space < 0) {
+            return -1;
+        }
+
+        long usable = space - Storage.LOW_STORAGE_THRESHOLD;
+        return Math.max(0, usable / Math.max(1, getAverageShotSize(kind)));
+    }
+}
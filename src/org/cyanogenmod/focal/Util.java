@@ -28,14 +28,8 @@ import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.hardware.Camera.Size;
 import android.net.Uri;
-import android.os.Build;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicYuvToRGB;
-import android.renderscript.Type;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.OrientationEventListener;
@@ -45,6 +39,7 @@ import android.view.WindowManager;
 import android.view.animation.AlphaAnimation;
 import android.view.animation.Animation;
 
+import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -232,7 +227,7 @@ public class Util {
 
     /**
      * Converts the provided byte array from YUV420SP into an RGBA bitmap.
-     * @param context
+     * @param converter The converter to use
      * @param yuv420sp The YUV420SP data
      * @param width Width of the data's picture
      * @param height Height of the data's picture
@@ -240,120 +235,30 @@ public class Util {
      * @throws NullPointerException
      * @throws IllegalArgumentException
      */
-    public static Bitmap decodeYUV420SP(Context context, byte[] yuv420sp, int width, int height)
+    public static Bitmap decodeYUV420SP(YuvConverter converter, byte[] yuv420sp,
+                                        int width, int height)
             throws NullPointerException, IllegalArgumentException {
-
-        Bitmap bmp = null;
-
-        if (Build.VERSION.SDK_INT >= 17) {
-            final RenderScript rs = RenderScript.create(context);
-            final ScriptIntrinsicYuvToRGB script = ScriptIntrinsicYuvToRGB
-                    .create(rs, Element.RGBA_8888(rs));
-            Type.Builder tb = new Type.Builder(rs, Element.RGBA_8888(rs));
-            tb.setX(width);
-            tb.setY(height);
-
-            Allocation allocationOut = Allocation.createTyped(rs, tb.create());
-            Allocation allocationIn = Allocation.createSized(rs, Element.U8(rs),
-                    (height * width) + ((height / 2) * (width / 2) * 2));
-
-            script.setInput(allocationIn);
-
-            bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            allocationIn.copyFrom(yuv420sp);
-            script.forEach(allocationOut);
-            allocationOut.copyTo(bmp);
-        } else {
-            final int frameSize = width * height;
-            int[] rgb = new int[frameSize];
-
-            for (int j = 0, yp = 0; j < height; j++) {
-                int uvp = frameSize + (j >> 1) * width, u = 0, v = 0;
-                for (int i = 0; i < width; i++, yp++) {
-                    int y = (0xff & ((int) yuv420sp[yp])) - 16;
-                    if (y < 0) {
-                        y = 0;
-                    }
-                    if ((i & 1) == 0) {
-                        v = (0xff & yuv420sp[uvp++]) - 128;
-                        u = (0xff & yuv420sp[uvp++]) - 128;
-                    }
-
-                    int y1192 = 1192 * y;
-                    int r = (y1192 + 1634 * v);
-                    int g = (y1192 - 833 * v - 400 * u);
-                    int b = (y1192 + 2066 * u);
-
-                    if (r < 0) {
-                        r = 0;
-                    } else if (r > 262143) {
-                        r = 262143;
-                    }
-                    if (g < 0) {
-                        g = 0;
-                    } else if (g > 262143) {
-                        g = 262143;
-                    }
-                    if (b < 0) {
-                        b = 0;
-                    } else if (b > 262143) {
-                        b = 262143;
-                    }
-
-                    rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00)
-                            | ((b >> 10) & 0xff);
-                }
-            }
-
-            bmp = Bitmap.createBitmap(rgb, width, height, Bitmap.Config.ARGB_8888);
-        }
-
-        return bmp;
+        // The converter fills the bitmap the cheapest way it can: RenderScript
+        // copies its output allocation into it without going through an int[]
+        return converter.convertNV21(yuv420sp, width, height);
     }
 
+    /**
+     * Converts the provided byte array from YUV422P into an RGBA bitmap. Large frames
+     * are converted on several cores.
+     * @param yuv422p The YUV422P data
+     * @param width Width of the data's picture
+     * @param height Height of the data's picture
+     * @return A decoded bitmap
+     * @throws NullPointerException
+     * @throws IllegalArgumentException
+     */
     public static Bitmap decodeYUV422P(byte[] yuv422p, int width, int height)
             throws NullPointerException, IllegalArgumentException {
-        final int frameSize = width * height;
-        int[] rgb = new int[frameSize];
-        for (int j = 0, yp = 0; j < height; j++) {
-            int up = frameSize + (j * (width/2)), u = 0, v = 0;
-            int vp = ((int)(frameSize*1.5) + (j*(width/2)));
-            for (int i = 0; i < width; i++, yp++) {
-                int y = (0xff & ((int) yuv422p[yp])) - 16;
-                if (y < 0) {
-                    y = 0;
-                }
-
-                if ((i & 1) == 0) {
-                    u = (0xff & yuv422p[up++]) - 128;
-                    v = (0xff & yuv422p[vp++]) - 128;
-                }
-
-                int y1192 = 1192 * y;
-                int r = (y1192 + 1634 * v);
-                int g = (y1192 - 833 * v - 400 * u);
-                int b = (y1192 + 2066 * u);
-
-                if (r < 0) {
-                    r = 0;
-                } else if (r > 262143) {
-                    r = 262143;
-                }
-                if (g < 0) {
-                    g = 0;
-                } else if (g > 262143) {
-                    g = 262143;
-                }
-                if (b < 0) {
-                    b = 0;
-                } else if (b > 262143) {
-                    b = 262143;
-                }
-
-                rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00)
-                        | ((b >> 10) & 0xff);
-            }
-        }
+        // Not pooled: this is used for full-resolution pictures, we don't want
+        // to keep such a buffer around
+        int[] rgb = new int[width * height];
+        YuvConversionEngine.getSingleton().decodeYUV422P(yuv422p, width, height, rgb);
 
         return Bitmap.createBitmap(rgb, width, height, Bitmap.Config.ARGB_8888);
     }
@@ -387,6 +292,21 @@ public class Util {
                 BaseColumns._ID + "=" + Long.toString(id), null);
     }
 
+    /**
+     * Deletes a file, or a directory and all its content
+     * @param file
+     * @return True if everything was deleted
+     */
+    public static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete();
+    }
+
     /**
      * Converts the specified DP to PIXELS according to current screen density
      * @param context
@@ -405,6 +325,11 @@ public class Util {
      * @return
      */
     public static String getRealPathFromURI(Context context, Uri contentURI) {
+        if (ContentResolver.SCHEME_FILE.equals(contentURI.getScheme())) {
+            // Staged picture, or other local file
+            return contentURI.getPath();
+        }
+
         Cursor cursor = context.getContentResolver().query(contentURI, null, null, null, null);
         if (cursor == null) { // Source is Dropbox or other similar local file path
             return contentURI.getPath();
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Finalizes recorded videos in the background. Each video goes through a pipeline
+ * of stages, run in order on a dedicated thread: the recorder is stopped, the file
+ * is renamed from its temporary name, its MediaStore entry is completed, and the
+ * video is broadcast. The listener is called back on the main thread after the
+ * recorder stopped, and once the video is finalized.
+ *
+ * Only the recorder stage holds the camera: a new recording just waits for it
+ * (see waitRecorderStopped), not for the previous video to be indexed.
+ *
+ * The thread is started with the first video, and stops once the queued videos are
+ * finalized after shutdown() is called.
+ */
+public class VideoFinalizer {
+    public final static String TAG = "VideoFinalizer";
+
+    public interface Listener {
+        /**
+         * Called on the main thread once the recorder is stopped
+         */
+        public void onRecorderStopped();
+
+        /**
+         * Called on the main thread once the video is finalized
+         *
+         * @param uri The MediaStore URI of the video, or null if it couldn't be added
+         * @param path The path of the video file
+         */
+        public void onVideoFinalized(Uri uri, String path);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private ExecutorService mExecutor;
+    // Videos whose recorder isn't stopped yet
+    private int mPendingStops;
+
+    // Runs in main thread
+    public VideoFinalizer(Context context) {
+        mContext = context;
+        mHandler = new Handler();
+    }
+
+    /**
+     * Lets the queued videos be finalized, then stops the thread. This doesn't wait.
+     * Videos queued afterwards start a new thread.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG);
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    /**
+     * Queues the finalization of a recorded video, or of a segment of it
+     *
+     * @param stopRecorder Stops the recorder of the video, and hands the camera back
+     * @param tmpPath The path the video is recorded into
+     * @param uri The MediaStore entry of the video, or null to skip indexing
+     * @param values The values of the entry, with the final path in DATA
+     * @param listener The listener notified of the progress, or null
+     */
+    public void finalizeVideo(final Runnable stopRecorder, final String tmpPath,
+                              final Uri uri, final ContentValues values,
+                              final Listener listener) {
+        synchronized (this) {
+            mPendingStops++;
+        }
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                // Stage 1: stop the recorder, and hand the camera back
+                try {
+                    stopRecorder.run();
+                } finally {
+                    synchronized (VideoFinalizer.this) {
+                        mPendingStops--;
+                        VideoFinalizer.this.notifyAll();
+                    }
+                }
+                if (listener != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onRecorderStopped();
+                        }
+                    });
+                }
+
+                final String path;
+                final Uri finalUri;
+                if (uri == null) {
+                    path = tmpPath;
+                    finalUri = null;
+                } else {
+                    path = rename(tmpPath, values);
+                    finalUri = index(uri, path, values);
+                }
+
+                if (listener != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onVideoFinalized(finalUri, path);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the recorders of all the queued videos are stopped, so that the
+     * camera can record again
+     */
+    public synchronized void waitRecorderStopped() {
+        while (mPendingStops > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore.
+            }
+        }
+    }
+
+    // Runs in finalizer thread
+    // Stage 2: give the file its final name, so that other apps never read
+    // incomplete data
+    private String rename(String tmpPath, ContentValues values) {
+        File file = new File(tmpPath);
+        long size = file.length();
+        values.put(MediaStore.Video.Media.SIZE, size);
+        StorageMonitor.getSingleton().onBytesWritten(size);
+
+        String finalPath = values.getAsString(MediaStore.Video.Media.DATA);
+        if (file.renameTo(new File(finalPath))) {
+            return finalPath;
+        }
+
+        Log.e(TAG, "Failed to rename " + tmpPath + " to " + finalPath);
+        values.put(MediaStore.Video.Media.DATA, tmpPath);
+        return tmpPath;
+    }
+
+    // Runs in finalizer thread
+    // Stages 3 and 4: complete the MediaStore entry, and broadcast the video
+    private Uri index(Uri uri, String path, ContentValues values) {
+        try {
+            mContext.getContentResolver().update(uri, values, null, null);
+        } catch (Exception e) {
+            // We failed to insert into the database. This can happen if
+            // the SD card is unmounted.
+            Log.e(TAG, "failed to add video to media store", e);
+            return null;
+        }
+
+        mContext.sendBroadcast(new Intent(Util.ACTION_NEW_VIDEO, uri));
+        Log.v(TAG, "Video finalized: " + uri + " (" + path + ")");
+        return uri;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts YUV frames to ARGB using several cores. The frame is split in bands
+ * of rows, each band being decoded by YuvDecoder on its own worker while the
+ * calling thread takes care of the first one. Small frames (like preview frames)
+ * are simply decoded on the calling thread, as the hand-off would cost more than
+ * the conversion itself.
+ */
+public class YuvConversionEngine {
+    public final static String TAG = "YuvConversionEngine";
+
+    // Frames smaller than this amount of pixels are decoded on a single thread
+    public final static int DEFAULT_MIN_PARALLEL_PIXELS = 1280 * 720;
+
+    private final static int FORMAT_NV21 = 0;
+    private final static int FORMAT_YUV422P = 1;
+
+    private static YuvConversionEngine sSingleton;
+
+    private ExecutorService mExecutor;
+    // Executors replaced while decodes were still submitting bands to them
+    private final List<ExecutorService> mRetiredExecutors = new ArrayList<ExecutorService>();
+    private int mDecodesInFlight;
+    private int mParallelism;
+    private int mMinParallelPixels;
+
+    public static synchronized YuvConversionEngine getSingleton() {
+        if (sSingleton == null) {
+            sSingleton = new YuvConversionEngine(0, DEFAULT_MIN_PARALLEL_PIXELS);
+        }
+
+        return sSingleton;
+    }
+
+    /**
+     * @param parallelism Number of threads to use, or 0 for the number of cores
+     * @param minParallelPixels Frames smaller than this are decoded on a single thread
+     */
+    public YuvConversionEngine(int parallelism, int minParallelPixels) {
+        mMinParallelPixels = minParallelPixels;
+        setParallelism(parallelism);
+    }
+
+    /**
+     * Sets the number of threads working on a single frame (including the calling
+     * thread). Decodes already running keep using the previous workers, which are
+     * shut down once they are done.
+     *
+     * @param parallelism Number of threads, or 0 for the number of cores
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+
+        if (parallelism == mParallelism) {
+            return;
+        }
+
+        if (mExecutor != null) {
+            if (mDecodesInFlight == 0) {
+                mExecutor.shutdown();
+            } else {
+                mRetiredExecutors.add(mExecutor);
+            }
+            mExecutor = null;
+        }
+
+        mParallelism = parallelism;
+        if (mParallelism > 1) {
+            mExecutor = Executors.newFixedThreadPool(mParallelism - 1, new ThreadFactory() {
+                private int mCount = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG + "-" + (mCount++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    public synchronized int getParallelism() {
+        return mParallelism;
+    }
+
+    public synchronized void setMinParallelPixels(int pixels) {
+        mMinParallelPixels = pixels;
+    }
+
+    /**
+     * Decodes a full NV21 frame into the provided ARGB array
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array, must hold at least width*height pixels
+     */
+    public void decodeNV21(byte[] yuv420sp, int width, int height, int[] argb) {
+        YuvDecoder.checkNV21(yuv420sp, width, height);
+        checkOutput(argb, width, height);
+        decode(FORMAT_NV21, yuv420sp, width, height, argb);
+    }
+
+    /**
+     * Decodes a full YUV422P frame into the provided ARGB array
+     *
+     * @param yuv422p The YUV422P data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array, must hold at least width*height pixels
+     */
+    public void decodeYUV422P(byte[] yuv422p, int width, int height, int[] argb) {
+        YuvDecoder.checkYUV422P(yuv422p, width, height);
+        checkOutput(argb, width, height);
+        decode(FORMAT_YUV422P, yuv422p, width, height, argb);
+    }
+
+    private void decode(int format, byte[] yuv, int width, int height, int[] argb) {
+        ExecutorService executor;
+        int bands;
+        synchronized (this) {
+            executor = mExecutor;
+            bands = Math.min(mParallelism, height);
+            if (executor == null || width * height < mMinParallelPixels) {
+                bands = 1;
+            }
+            if (bands > 1) {
+                mDecodesInFlight++;
+            }
+        }
+
+        if (bands == 1) {
+            new Band(format, yuv, width, height, argb, 0, height).run();
+            return;
+        }
+
+        try {
+            decodeBands(executor, bands, format, yuv, width, height, argb);
+        } finally {
+            synchronized (this) {
+                mDecodesInFlight--;
+                if (mDecodesInFlight == 0) {
+                    for (ExecutorService retired : mRetiredExecutors) {
+                        retired.shutdown();
+                    }
+                    mRetiredExecutors.clear();
+                }
+            }
+        }
+    }
+
+    private void decodeBands(ExecutorService executor, int bands, int format, byte[] yuv,
+                             int width, int height, int[] argb) {
+        // Hand bands 1..n-1 to the workers, and do the first one ourselves
+        final int rowsPerBand = (height + bands - 1) / bands;
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+        for (int first = rowsPerBand; first < height; first += rowsPerBand) {
+            futures.add(executor.submit(new Band(format, yuv, width, height, argb,
+                    first, Math.min(first + rowsPerBand, height))));
+        }
+        new Band(format, yuv, width, height, argb, 0, rowsPerBand).run();
+
+        for (Future<?> future : futures) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // The output buffer is still being written, we can't leave now
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("YUV conversion failed", e.getCause());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void checkOutput(int[] argb, int width, int height) {
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("Output buffer too small for "
+                    + width + "x" + height);
+        }
+    }
+
+    /**
+     * A range of rows [mFirstRow, mLastRow[ to decode
+     */
+    private static class Band implements Runnable {
+        private final int mFormat;
+        private final byte[] mYuv;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mArgb;
+        private final int mFirstRow;
+        private final int mLastRow;
+
+        public Band(int format, byte[] yuv, int width, int height, int[] argb,
+                    int firstRow, int lastRow) {
+            mFormat = format;
+            mYuv = yuv;
+            mWidth = width;
+            mHeight = height;
+            mArgb = argb;
+            mFirstRow = firstRow;
+            mLastRow = lastRow;
+        }
+
+        @Override
+        public void run() {
+            for (int j = mFirstRow; j < mLastRow; j++) {
+                if (mFormat == FORMAT_NV21) {
+                    YuvDecoder.decodeNV21Row(mYuv, mWidth, mHeight, j, mArgb, j * mWidth);
+                } else {
+                    YuvDecoder.decodeYUV422PRow(mYuv, mWidth, mHeight, j, mArgb, j * mWidth);
+                }
+            }
+        }
+    }
+}
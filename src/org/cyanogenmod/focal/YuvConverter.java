@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import android.graphics.Bitmap;
+
+/**
+ * Converts NV21 preview frames to ARGB pixels. Implementations keep their
+ * resources (contexts, buffers) between calls until release() is called.
+ */
+public interface YuvConverter {
+    /**
+     * Converts an NV21 frame
+     *
+     * @param nv21 The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array, must hold at least width*height pixels
+     */
+    public void convertNV21(byte[] nv21, int width, int height, int[] argb);
+
+    /**
+     * Converts an NV21 frame into a new bitmap, with as few copies of the frame
+     * as the implementation allows
+     *
+     * @param nv21 The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @return The bitmap, owned by the caller
+     */
+    public Bitmap convertNV21(byte[] nv21, int width, int height);
+
+    /**
+     * Releases the resources held by the converter. It may be used again
+     * afterwards, in which case they are allocated again.
+     */
+    public void release();
+}
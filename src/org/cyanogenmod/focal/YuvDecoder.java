@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal;
+
+import java.nio.IntBuffer;
+
+/**
+ * Pure-Java YUV420SP (NV21) and YUV422P to ARGB decoder. Unlike Util.decodeYUV420SP, it never
+ * allocates its output: pixels are written into a caller-owned int array or IntBuffer,
+ * which can be recycled through the BufferPool. This class doesn't depend on the
+ * Android framework, so it can run on a plain JVM.
+ */
+public class YuvDecoder {
+    // Fixed-point BT.601 coefficients (scaled by 1024) contributions of each
+    // Y, U and V value, precomputed so that the inner loops only do lookups
+    private final static int[] Y = new int[256];
+    private final static int[] R_V = new int[256];
+    private final static int[] G_V = new int[256];
+    private final static int[] G_U = new int[256];
+    private final static int[] B_U = new int[256];
+
+    // Saturating table turning a channel value (shifted down by 10 bits) into
+    // 0..255. Channels range from -259 to 534 once shifted.
+    private final static int CLAMP_OFFSET = 512;
+    private final static int[] CLAMP = new int[CLAMP_OFFSET + 768];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y[i] = 1192 * Math.max(i - 16, 0);
+            R_V[i] = 1634 * (i - 128);
+            G_V[i] = -833 * (i - 128);
+            G_U[i] = -400 * (i - 128);
+            B_U[i] = 2066 * (i - 128);
+        }
+
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = Math.min(Math.max(i - CLAMP_OFFSET, 0), 255);
+        }
+    }
+
+    private static BufferPool sBufferPool;
+
+    /**
+     * Returns the process-wide pool of ARGB buffers
+     *
+     * @return BufferPool
+     */
+    public static synchronized BufferPool getBufferPool() {
+        if (sBufferPool == null) {
+            sBufferPool = new BufferPool();
+        }
+
+        return sBufferPool;
+    }
+
+    /**
+     * Decodes a full NV21 frame into the provided ARGB array
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array, must hold at least width*height pixels
+     */
+    public static void decodeNV21(byte[] yuv420sp, int width, int height, int[] argb) {
+        decodeNV21(yuv420sp, width, height, argb, 0);
+    }
+
+    /**
+     * Decodes a full NV21 frame into the provided ARGB array, starting at offset
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array
+     * @param offset Index of the first output pixel in argb
+     */
+    public static void decodeNV21(byte[] yuv420sp, int width, int height,
+                                  int[] argb, int offset) {
+        checkNV21(yuv420sp, width, height);
+        if (argb.length - offset < width * height) {
+            throw new IllegalArgumentException("Output buffer too small for "
+                    + width + "x" + height);
+        }
+
+        for (int j = 0; j < height; j++) {
+            decodeNV21Row(yuv420sp, width, height, j, argb, offset + j * width);
+        }
+    }
+
+    /**
+     * Decodes a full NV21 frame into the provided IntBuffer, from its current
+     * position. The position is advanced by width*height.
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output buffer
+     */
+    public static void decodeNV21(byte[] yuv420sp, int width, int height, IntBuffer argb) {
+        final int frameSize = width * height;
+        if (argb.remaining() < frameSize) {
+            throw new IllegalArgumentException("Output buffer too small for "
+                    + width + "x" + height);
+        }
+
+        if (argb.hasArray()) {
+            decodeNV21(yuv420sp, width, height, argb.array(),
+                    argb.arrayOffset() + argb.position());
+            argb.position(argb.position() + frameSize);
+        } else {
+            // Direct buffer: go through a pooled row
+            checkNV21(yuv420sp, width, height);
+            BufferPool pool = getBufferPool();
+            int[] row = pool.acquire(width, 1);
+            for (int j = 0; j < height; j++) {
+                decodeNV21Row(yuv420sp, width, height, j, row, 0);
+                argb.put(row, 0, width);
+            }
+            pool.release(row);
+        }
+    }
+
+    /**
+     * Decodes a single row of an NV21 frame
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param row The row to decode
+     * @param argb Output array
+     * @param offset Index in argb where the row starts
+     */
+    static void decodeNV21Row(byte[] yuv420sp, int width, int height, int row,
+                              int[] argb, int offset) {
+        final int frameSize = width * height;
+        int yp = row * width;
+        int uvp = frameSize + (row >> 1) * width;
+        int rv = 0, guv = 0, bu = 0;
+
+        for (int i = 0; i < width; i++, yp++) {
+            if ((i & 1) == 0) {
+                final int v = 0xff & yuv420sp[uvp++];
+                final int u = 0xff & yuv420sp[uvp++];
+                rv = R_V[v];
+                guv = G_V[v] + G_U[u];
+                bu = B_U[u];
+            }
+
+            argb[offset + i] = toArgb(Y[0xff & yuv420sp[yp]], rv, guv, bu);
+        }
+    }
+
+    /**
+     * Decodes a full YUV422P frame into the provided ARGB array
+     *
+     * @param yuv422p The YUV422P data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array, must hold at least width*height pixels
+     */
+    public static void decodeYUV422P(byte[] yuv422p, int width, int height, int[] argb) {
+        checkYUV422P(yuv422p, width, height);
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("Output buffer too small for "
+                    + width + "x" + height);
+        }
+
+        for (int j = 0; j < height; j++) {
+            decodeYUV422PRow(yuv422p, width, height, j, argb, j * width);
+        }
+    }
+
+    /**
+     * Decodes a single row of a YUV422P frame
+     *
+     * @param yuv422p The YUV422P data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param row The row to decode
+     * @param argb Output array
+     * @param offset Index in argb where the row starts
+     */
+    static void decodeYUV422PRow(byte[] yuv422p, int width, int height, int row,
+                                 int[] argb, int offset) {
+        final int frameSize = width * height;
+        int yp = row * width;
+        int up = frameSize + (row * (width / 2));
+        int vp = ((int) (frameSize * 1.5) + (row * (width / 2)));
+        int rv = 0, guv = 0, bu = 0;
+
+        for (int i = 0; i < width; i++, yp++) {
+            if ((i & 1) == 0) {
+                final int u = 0xff & yuv422p[up++];
+                final int v = 0xff & yuv422p[vp++];
+                rv = R_V[v];
+                guv = G_V[v] + G_U[u];
+                bu = B_U[u];
+            }
+
+            argb[offset + i] = toArgb(Y[0xff & yuv422p[yp]], rv, guv, bu);
+        }
+    }
+
+    /**
+     * Decodes an NV21 frame at a quarter of its resolution in each dimension,
+     * keeping one pixel out of four on each axis.
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param argb Output array, must hold ((width + 3) / 4) * ((height + 3) / 4) pixels
+     */
+    public static void decodeNV21QuarterRes(byte[] yuv420sp, int width, int height,
+                                            int[] argb) {
+        decodeNV21Scaled(yuv420sp, width, height, 4, false, argb);
+    }
+
+    /**
+     * Returns the size of a frame dimension once subsampled by decodeNV21Scaled
+     *
+     * @param size Width or height of the frame
+     * @param scale The integer downscale factor
+     * @return The subsampled width or height
+     */
+    public static int getScaledSize(int size, int scale) {
+        return (size + scale - 1) / scale;
+    }
+
+    /**
+     * Decodes an NV21 frame subsampled by an integer factor, keeping one pixel
+     * out of scale on each axis, and optionally mirrored horizontally. Everything
+     * is done in a single pass, only the kept pixels being converted.
+     *
+     * @param yuv420sp The YUV420SP data
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param scale The downscale factor, 1 keeps the full resolution
+     * @param mirror Whether or not to flip the frame horizontally
+     * @param argb Output array, must hold getScaledSize(width, scale) *
+     *             getScaledSize(height, scale) pixels
+     */
+    public static void decodeNV21Scaled(byte[] yuv420sp, int width, int height,
+                                        int scale, boolean mirror, int[] argb) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("Invalid scale " + scale);
+        }
+        checkNV21(yuv420sp, width, height);
+
+        final int frameSize = width * height;
+        final int outWidth = getScaledSize(width, scale);
+        final int outHeight = getScaledSize(height, scale);
+        if (argb.length < outWidth * outHeight) {
+            throw new IllegalArgumentException("Output buffer too small for "
+                    + outWidth + "x" + outHeight);
+        }
+
+        for (int j = 0, row = 0; j < height; j += scale, row++) {
+            final int yRow = j * width;
+            final int uvRow = frameSize + (j >> 1) * width;
+            int ypd = row * outWidth;
+            int step = 1;
+            if (mirror) {
+                ypd += outWidth - 1;
+                step = -1;
+            }
+
+            for (int i = 0; i < width; i += scale, ypd += step) {
+                // U and V are shared by pairs of pixels, starting at even columns
+                final int uvp = uvRow + (i & ~1);
+                final int v = 0xff & yuv420sp[uvp];
+                final int u = 0xff & yuv420sp[uvp + 1];
+
+                argb[ypd] = toArgb(Y[0xff & yuv420sp[yRow + i]],
+                        R_V[v], G_V[v] + G_U[u], B_U[u]);
+            }
+        }
+    }
+
+    /**
+     * Combines the table contributions of one pixel into an opaque ARGB value
+     */
+    private static int toArgb(int y1192, int rv, int guv, int bu) {
+        return 0xff000000
+                | (CLAMP[((y1192 + rv) >> 10) + CLAMP_OFFSET] << 16)
+                | (CLAMP[((y1192 + guv) >> 10) + CLAMP_OFFSET] << 8)
+                | CLAMP[((y1192 + bu) >> 10) + CLAMP_OFFSET];
+    }
+
+    static void checkNV21(byte[] yuv420sp, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+        if (yuv420sp.length < width * height + (height / 2) * width) {
+            throw new IllegalArgumentException("NV21 data too small for "
+                    + width + "x" + height);
+        }
+    }
+
+    static void checkYUV422P(byte[] yuv422p, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+        if (yuv422p.length < width * height * 2) {
+            throw new IllegalArgumentException("YUV422P data too small for "
+                    + width + "x" + height);
+        }
+    }
+
+    /**
+     * Small pool of ARGB buffers keyed by frame size. Preview frames are always the
+     * same size while the camera runs, so in steady state every acquire() is served
+     * by a buffer released earlier and nothing gets allocated.
+     */
+    public static class BufferPool {
+        // Number of idle buffers kept around. Older ones are dropped first.
+        private final static int MAX_IDLE_BUFFERS = 4;
+
+        private final int[][] mIdle = new int[MAX_IDLE_BUFFERS][];
+        private int mIdleCount;
+
+        /**
+         * Returns a buffer of exactly width*height pixels. Its contents are undefined.
+         *
+         * @param width Width of the frame
+         * @param height Height of the frame
+         * @return A buffer that should be handed back with release() once done
+         */
+        public synchronized int[] acquire(int width, int height) {
+            final int size = width * height;
+            for (int i = mIdleCount - 1; i >= 0; i--) {
+                if (mIdle[i].length == size) {
+                    int[] buffer = mIdle[i];
+                    removeAt(i);
+                    return buffer;
+                }
+            }
+
+            return new int[size];
+        }
+
+        /**
+         * Gives a buffer back to the pool. The caller must not touch it afterwards.
+         *
+         * @param buffer The buffer obtained from acquire()
+         */
+        public synchronized void release(int[] buffer) {
+            if (buffer == null) {
+                return;
+            }
+
+            if (mIdleCount == MAX_IDLE_BUFFERS) {
+                // Drop the oldest buffer, likely from a previous preview size
+                removeAt(0);
+            }
+            mIdle[mIdleCount++] = buffer;
+        }
+
+        /**
+         * Drops all the idle buffers
+         */
+        public synchronized void clear() {
+            while (mIdleCount > 0) {
+                removeAt(mIdleCount - 1);
+            }
+        }
+
+        private void removeAt(int index) {
+            System.arraycopy(mIdle, index + 1, mIdle, index, mIdleCount - index - 1);
+            mIdle[--mIdleCount] = null;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import org.cyanogenmod.focal.Exif;
+import org.cyanogenmod.focal.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Long-lived thread enhancing pictures with the AutoPictureEnhancer. A GL context
+ * can only be used from the thread that created it, so this thread owns a single
+ * PixelBuffer, created with the first picture and only resized when the size of
+ * the pictures changes, instead of setting up EGL for every shot. Pictures are
+ * queued, and enhanced back-to-back in order.
+ *
+ * Pictures that don't fit in config_maxTextureSize are enhanced by tiles: the
+ * enhancement is run once on a downsample of the picture, from which a global
+ * tone curve is learnt, and the curve is then applied to the full resolution
+ * picture one tile at a time. Only the output bitmap, a downsample and a tile are
+ * in memory, and the picture keeps its full resolution. A tone curve can't
+ * reproduce the local contrast fix though: with the GL engine, such pictures only
+ * get the global part of the enhancement. The CPU engine has no size limit, so it
+ * enhances them completely, decoding them by stripes of rows.
+ *
+ * The working resolution is decided before decoding, so that pictures are decoded
+ * right at that size, and never exist twice in memory at full resolution.
+ *
+ * Each picture is enhanced with the engine it was queued with: the GL effects of
+ * the AutoPictureEnhancer, or the CpuPictureEnhancer, which needs no GL context.
+ */
+public class AutoEnhanceWorker extends Thread {
+    public final static String TAG = "AutoEnhanceWorker";
+
+    // Enhancement engines
+    public final static int ENGINE_GL = 0;
+    public final static int ENGINE_CPU = 1;
+
+    public interface Callback {
+        /**
+         * Called on the worker thread once the picture is enhanced
+         *
+         * @param jpegData The enhanced JPEG, with the EXIF data of the original one
+         */
+        public void onPictureEnhanced(byte[] jpegData);
+    }
+
+    private static class Request {
+        byte[] jpegData;
+        int width, height;
+        int engine;
+        Callback callback;
+    }
+
+    // Size of the tiles decoded from the full resolution pictures
+    private final static int TILE_SIZE = 512;
+    // Rows of the stripes the CPU engine enhances at once
+    private final static int STRIPE_ROWS = 256;
+
+    private final Context mContext;
+    private final int mMaxTextureSize;
+    private final ArrayList<Request> mQueue = new ArrayList<Request>();
+    private PixelBuffer mOffscreenGL;
+    private AutoPictureEnhancer mAutoPicEnhancer;
+    private CpuPictureEnhancer mCpuEnhancer;
+    private boolean mStop;
+
+    public AutoEnhanceWorker(Context context) {
+        super(TAG);
+        mContext = context;
+        mMaxTextureSize = context.getResources().getInteger(R.integer.config_maxTextureSize);
+        start();
+    }
+
+    /**
+     * Queues a picture to enhance
+     *
+     * @param jpegData The JPEG data of the picture
+     * @param width The width of the picture
+     * @param height The height of the picture
+     * @param engine The engine enhancing the picture, ENGINE_GL or ENGINE_CPU
+     * @param callback Called with the enhanced picture
+     */
+    public synchronized void enhance(byte[] jpegData, int width, int height, int engine,
+                                     Callback callback) {
+        Request r = new Request();
+        r.jpegData = jpegData;
+        r.width = width;
+        r.height = height;
+        r.engine = engine;
+        r.callback = callback;
+        mQueue.add(r);
+        notifyAll();
+    }
+
+    /**
+     * Stops the worker once the queued pictures are enhanced, and releases the GL
+     * context and the CPU workers. This doesn't wait.
+     */
+    public synchronized void shutdown() {
+        mStop = true;
+        notifyAll();
+    }
+
+    // Runs in worker thread
+    @Override
+    public void run() {
+        while (true) {
+            Request r;
+            synchronized (this) {
+                if (mQueue.isEmpty()) {
+                    if (mStop) break;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore.
+                    }
+                    continue;
+                }
+                r = mQueue.remove(0);
+            }
+
+            r.callback.onPictureEnhanced(process(r));
+        }
+
+        if (mOffscreenGL != null) {
+            mAutoPicEnhancer.release();
+            mOffscreenGL.release();
+            mOffscreenGL = null;
+            mAutoPicEnhancer = null;
+        }
+        if (mCpuEnhancer != null) {
+            mCpuEnhancer.release();
+            mCpuEnhancer = null;
+        }
+    }
+
+    // Runs in worker thread
+    private byte[] process(Request r) {
+        // Keep the EXIF data of the camera, to put it back as is in the enhanced picture
+        byte[] exifSegment = Exif.getExifSegment(r.jpegData);
+
+        Bitmap enhanced;
+        if (r.width < mMaxTextureSize && r.height < mMaxTextureSize) {
+            enhanced = enhanceBitmap(decode(r.jpegData, r.width, r.height, mMaxTextureSize - 1,
+                    r.engine == ENGINE_CPU), r.engine);
+        } else {
+            enhanced = enhanceTiled(r.jpegData, r.engine);
+        }
+
+        if (enhanced == null) {
+            Log.e(TAG, "Unable to enhance the picture, keeping the original one");
+            return r.jpegData;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        enhanced.compress(Bitmap.CompressFormat.JPEG, 90, baos);
+        enhanced.recycle();
+        return Exif.spliceExifSegment(baos.toByteArray(), exifSegment);
+    }
+
+    // Runs in worker thread
+    // Enhances a bitmap that fits in a texture. The bitmap is recycled.
+    private Bitmap enhanceBitmap(Bitmap bitmap, int engine) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        if (engine == ENGINE_CPU) {
+            return enhanceBitmapOnCpu(bitmap);
+        }
+
+        if (mOffscreenGL == null) {
+            mOffscreenGL = new PixelBuffer(mContext, bitmap.getWidth(), bitmap.getHeight());
+            mAutoPicEnhancer = new AutoPictureEnhancer(mContext);
+            mOffscreenGL.setRenderer(mAutoPicEnhancer);
+        } else {
+            mOffscreenGL.resize(bitmap.getWidth(), bitmap.getHeight());
+        }
+
+        mAutoPicEnhancer.setTexture(bitmap);
+        return mOffscreenGL.getBitmap();
+    }
+
+    // Runs in worker thread
+    // Enhances a bitmap in place, one stripe of rows at a time, so that its pixels
+    // are never copied whole
+    private Bitmap enhanceBitmapOnCpu(Bitmap bitmap) {
+        if (mCpuEnhancer == null) {
+            mCpuEnhancer = new CpuPictureEnhancer(0);
+        }
+
+        if (!bitmap.isMutable()) {
+            Bitmap copy = bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            bitmap.recycle();
+            if (copy == null) {
+                return null;
+            }
+            bitmap = copy;
+        }
+
+        final int w = bitmap.getWidth();
+        final int h = bitmap.getHeight();
+        int[] stripe = new int[w * Math.min(STRIPE_ROWS, h)];
+
+        int[][] histograms = CpuPictureEnhancer.newHistograms();
+        for (int y = 0; y < h; y += STRIPE_ROWS) {
+            final int rows = Math.min(STRIPE_ROWS, h - y);
+            bitmap.getPixels(stripe, 0, w, 0, y, w, rows);
+            mCpuEnhancer.stretchLevels(stripe, w, h, y, y + rows, histograms);
+            bitmap.setPixels(stripe, 0, w, 0, y, w, rows);
+        }
+
+        fixContrastOnCpu(bitmap, stripe, histograms);
+        return bitmap;
+    }
+
+    // Runs in worker thread
+    // Enhances a picture at full resolution on the CPU, decoding it one stripe of
+    // rows at a time straight into the output bitmap
+    private Bitmap enhanceStripesOnCpu(BitmapRegionDecoder decoder) {
+        if (mCpuEnhancer == null) {
+            mCpuEnhancer = new CpuPictureEnhancer(0);
+        }
+
+        final int w = decoder.getWidth();
+        final int h = decoder.getHeight();
+        Bitmap output = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        int[] stripe = new int[w * Math.min(STRIPE_ROWS, h)];
+        Rect rect = new Rect();
+
+        // Full stripes are all decoded in the same bitmap
+        BitmapFactory.Options stripeOpts = new BitmapFactory.Options();
+        stripeOpts.inMutable = true;
+        Bitmap reusableStripe = null;
+
+        int[][] histograms = CpuPictureEnhancer.newHistograms();
+        for (int y = 0; y < h; y += STRIPE_ROWS) {
+            final int rows = Math.min(STRIPE_ROWS, h - y);
+            final boolean fullStripe = (rows == STRIPE_ROWS);
+            rect.set(0, y, w, y + rows);
+
+            stripeOpts.inBitmap = fullStripe ? reusableStripe : null;
+            Bitmap decoded = decoder.decodeRegion(rect, stripeOpts);
+            if (decoded == null) {
+                if (reusableStripe != null) reusableStripe.recycle();
+                output.recycle();
+                return null;
+            }
+
+            decoded.getPixels(stripe, 0, w, 0, 0, w, rows);
+            if (fullStripe) {
+                reusableStripe = decoded;
+            } else {
+                decoded.recycle();
+            }
+
+            mCpuEnhancer.stretchLevels(stripe, w, h, y, y + rows, histograms);
+            output.setPixels(stripe, 0, w, 0, y, w, rows);
+        }
+
+        if (reusableStripe != null) {
+            reusableStripe.recycle();
+        }
+
+        fixContrastOnCpu(output, stripe, histograms);
+        return output;
+    }
+
+    // Runs in worker thread
+    // Second pass of the CPU engine, on a bitmap whose levels are stretched
+    private void fixContrastOnCpu(Bitmap bitmap, int[] stripe, int[][] histograms) {
+        final int w = bitmap.getWidth();
+        final int h = bitmap.getHeight();
+
+        int[][] curves = CpuPictureEnhancer.getCurves(histograms);
+        for (int y = 0; y < h; y += STRIPE_ROWS) {
+            final int rows = Math.min(STRIPE_ROWS, h - y);
+            bitmap.getPixels(stripe, 0, w, 0, y, w, rows);
+            mCpuEnhancer.fixContrast(stripe, w, h, y, y + rows, curves);
+            bitmap.setPixels(stripe, 0, w, 0, y, w, rows);
+        }
+    }
+
+    // Runs in worker thread
+    private Bitmap enhanceTiled(byte[] jpegData, int engine) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(jpegData, 0, jpegData.length, false);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to decode the picture by tiles", e);
+            return null;
+        }
+
+        try {
+            if (engine == ENGINE_CPU) {
+                return enhanceStripesOnCpu(decoder);
+            }
+
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+
+            // The local contrast fix can't be reproduced by a curve, so the GL engine
+            // only gives the global part of the enhancement to such pictures.
+            // Learn the curve on the largest downsample that fits in a texture
+            ToneCurve curve = learnCurve(decode(jpegData, width, height,
+                    mMaxTextureSize - 1, engine == ENGINE_CPU), engine);
+            if (curve == null) {
+                return null;
+            }
+
+            // The curve works on each pixel independently, so the tiles don't need to
+            // overlap to join without seams
+            Bitmap output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+            Rect rect = new Rect();
+
+            // Full tiles are all decoded in the same bitmap
+            BitmapFactory.Options tileOpts = new BitmapFactory.Options();
+            tileOpts.inMutable = true;
+            Bitmap reusableTile = null;
+
+            for (int y = 0; y < height; y += TILE_SIZE) {
+                for (int x = 0; x < width; x += TILE_SIZE) {
+                    rect.set(x, y, Math.min(x + TILE_SIZE, width),
+                            Math.min(y + TILE_SIZE, height));
+                    final int w = rect.width();
+                    final int h = rect.height();
+                    final boolean fullTile = (w == TILE_SIZE && h == TILE_SIZE);
+
+                    tileOpts.inBitmap = fullTile ? reusableTile : null;
+                    Bitmap tile = decoder.decodeRegion(rect, tileOpts);
+                    if (tile == null) {
+                        if (reusableTile != null) reusableTile.recycle();
+                        output.recycle();
+                        return null;
+                    }
+
+                    tile.getPixels(pixels, 0, w, 0, 0, w, h);
+                    if (fullTile) {
+                        reusableTile = tile;
+                    } else {
+                        tile.recycle();
+                    }
+
+                    curve.apply(pixels, 0, w * h);
+                    output.setPixels(pixels, 0, w, x, y, w, h);
+                }
+            }
+
+            if (reusableTile != null) {
+                reusableTile.recycle();
+            }
+            return output;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Decodes a picture so that it fits in maxSize x maxSize, without ever holding it
+     * at a larger size: the decoder subsamples it by the largest power of two that
+     * keeps it above the target size, and scales it the rest of the way while
+     * decoding.
+     *
+     * @param jpegData The JPEG data of the picture
+     * @param width The width of the picture
+     * @param height The height of the picture
+     * @param maxSize The maximum width and height of the decoded bitmap
+     * @param mutable True to decode a bitmap that can be changed in place
+     * @return The decoded bitmap, or null if it couldn't be decoded
+     */
+    private static Bitmap decode(byte[] jpegData, int width, int height, int maxSize,
+                                 boolean mutable) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inMutable = mutable;
+
+        final int longEdge = Math.max(width, height);
+        if (longEdge > maxSize) {
+            opts.inSampleSize = 1;
+            while (longEdge / (opts.inSampleSize * 2) >= maxSize) {
+                opts.inSampleSize *= 2;
+            }
+            opts.inScaled = true;
+            opts.inDensity = longEdge / opts.inSampleSize;
+            opts.inTargetDensity = maxSize;
+        }
+
+        return BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, opts);
+    }
+
+    // Runs in worker thread
+    // Enhances a downsample, and returns the tone curve it went through. The
+    // downsample is recycled.
+    private ToneCurve learnCurve(Bitmap sample, int engine) {
+        if (sample == null) {
+            return null;
+        }
+
+        final int w = sample.getWidth();
+        final int h = sample.getHeight();
+        int[] original = new int[w * h];
+        sample.getPixels(original, 0, w, 0, 0, w, h);
+
+        Bitmap enhanced = enhanceBitmap(sample, engine);
+        if (enhanced == null) {
+            return null;
+        }
+        if (enhanced.getWidth() != w || enhanced.getHeight() != h) {
+            enhanced.recycle();
+            return null;
+        }
+
+        int[] result = new int[w * h];
+        enhanced.getPixels(result, 0, w, 0, 0, w, h);
+        enhanced.recycle();
+
+        return ToneCurve.fromSamples(original, result);
+    }
+}
@@ -29,7 +29,6 @@ import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.util.Log;
 
-import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.Util;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -60,55 +59,25 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
         mBitmapToLoad = bitmap;
     }
 
-    public static Bitmap scale(Bitmap bmp, int w, int h) {
-        Bitmap b = null;
-        if (bmp != null) {
-            Log.v(TAG, "Scaling bitmap from " + bmp.getWidth() + "x"
-                    + bmp.getHeight() + " to " + w + "x" + h);
-
-            // We're going to need some memory
-            System.gc();
-            Runtime.getRuntime().gc();
-
-            // Scale it!
-            b=Bitmap.createScaledBitmap(bmp, w, h, true);
-
-            // Release original bitmap
-            bmp.recycle();
-        }
-        return b;
-    }
-
     private void loadTextureImpl(Bitmap bitmap) {
-        // Generate textures
+        // Generate textures. The enhancer may be reused for several pictures, so
+        // delete the texture of the previous one first.
+        if (mTextures[0] != 0) {
+            GLES20.glDeleteTextures(1, mTextures, 0);
+        }
         GLES20.glGenTextures(1, mTextures, 0);
 
-        final int mMaxTextureSize =
-                mContext.getResources().getInteger(R.integer.config_maxTextureSize);
-
-        // Load input bitmap
-        if (bitmap.getWidth() > mMaxTextureSize || bitmap.getHeight() > mMaxTextureSize) {
-            mImageWidth = mMaxTextureSize;
-            mImageHeight = mMaxTextureSize;
-        } else {
-            mImageWidth = bitmap.getWidth();
-            mImageHeight = bitmap.getHeight();
-        }
+        // Load input bitmap. It must fit in config_maxTextureSize: larger pictures
+        // are enhanced by tiles (see AutoEnhanceWorker).
+        mImageWidth = bitmap.getWidth();
+        mImageHeight = bitmap.getHeight();
 
         mTexRenderer.updateTextureSize(mImageWidth, mImageHeight);
 
         // Upload to texture
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[0]);
-        if (mImageWidth != bitmap.getWidth() || mImageHeight != bitmap.getHeight()) {
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, scale(bitmap,
-                    mImageWidth, mImageHeight), 0);
-        } else {
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-        }
-
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
         bitmap.recycle();
-        System.gc();
-        Runtime.getRuntime().gc();
 
         // Set texture parameters
         GLToolbox.initTexParams();
@@ -116,9 +85,7 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
 
     private void initEffects() {
         EffectFactory effectFactory = mEffectContext.getFactory();
-        if (mAutoFixEffect != null) {
-            mAutoFixEffect.release();
-        }
+        releaseEffects();
 
         mAutoFixEffect = effectFactory.createEffect( EffectFactory.EFFECT_AUTOFIX);
         mAutoFixEffect.setParameter("scale", 0.4f);
@@ -128,6 +95,34 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
         mMinMaxEffect.setParameter("white", .8f);
     }
 
+    private void releaseEffects() {
+        if (mAutoFixEffect != null) {
+            mAutoFixEffect.release();
+            mAutoFixEffect = null;
+        }
+        if (mMinMaxEffect != null) {
+            mMinMaxEffect.release();
+            mMinMaxEffect = null;
+        }
+    }
+
+    /**
+     * Releases the GL resources of the enhancer. This must be called from the thread
+     * owning the GL context, before it's destroyed.
+     */
+    public void release() {
+        releaseEffects();
+        if (mTextures[0] != 0) {
+            GLES20.glDeleteTextures(1, mTextures, 0);
+            mTextures[0] = 0;
+        }
+        if (mEffectContext != null) {
+            mEffectContext.release();
+            mEffectContext = null;
+        }
+        mInitialized = false;
+    }
+
     private void applyEffects() {
         mMinMaxEffect.apply(mTextures[0], mImageWidth, mImageHeight, mTextures[0]);
         mAutoFixEffect.apply(mTextures[0], mImageWidth, mImageHeight, mTextures[0]);
@@ -161,14 +156,8 @@ public class AutoPictureEnhancer implements GLSurfaceView.Renderer {
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
-        final int mMaxTextureSize =
-                mContext.getResources().getInteger(R.integer.config_maxTextureSize);
         if (mTexRenderer != null) {
-            if (width > mMaxTextureSize || height > mMaxTextureSize) {
-                mTexRenderer.updateViewSize(mMaxTextureSize, mMaxTextureSize);
-            } else {
-                mTexRenderer.updateViewSize(width, height);
-            }
+            mTexRenderer.updateViewSize(width, height);
         }
     }
 
@@ -20,10 +20,12 @@
 package org.cyanogenmod.focal.feats;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.cyanogenmod.focal.CameraActivity;
 import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.StorageMonitor;
 import org.cyanogenmod.focal.ui.ShutterButton;
 
 /**
@@ -32,8 +34,15 @@ import org.cyanogenmod.focal.ui.ShutterButton;
 public class BurstCapture extends CaptureTransformer {
     public final static String TAG = "BurstCapture";
 
+    // Shots that can be waiting to be saved at the same time. SnapshotManager
+    // doesn't queue more than two snapshots.
+    private final static int MAX_SHOTS_IN_FLIGHT = 2;
+
     private int mBurstCount = -1;
+    private int mShotsRequested;
     private int mShotsDone;
+    private long mBurstStartTime;
+    private float mShotsPerSecond;
     private boolean mBurstInProgress = false;
     private Handler mHandler;
     private CameraActivity mActivity;
@@ -59,7 +68,11 @@ public class BurstCapture extends CaptureTransformer {
      */
     public void startBurstShot() {
         mShotsDone = 0;
+        mShotsRequested = 1;
+        mShotsPerSecond = 0;
+        mBurstStartTime = SystemClock.elapsedRealtime();
         mBurstInProgress = true;
+        mSnapManager.setShotKind(StorageMonitor.SHOT_BURST);
         mSnapManager.queueSnapshot(true, 0);
 
         // Open the quick review drawer
@@ -67,19 +80,54 @@ public class BurstCapture extends CaptureTransformer {
     }
 
     public void terminateBurstShot() {
+        if (mBurstInProgress && (mBurstCount == 0 || mShotsDone < mBurstCount)) {
+            // The burst was interrupted before its end
+            reportShotsPerSecond();
+        }
         mBurstInProgress = false;
+        mSnapManager.setShotKind(StorageMonitor.SHOT_NORMAL);
+    }
+
+    /**
+     * @return The number of shots saved per second during the last burst
+     */
+    public float getShotsPerSecond() {
+        return mShotsPerSecond;
+    }
+
+    private void reportShotsPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mBurstStartTime;
+        if (elapsed > 0) {
+            mShotsPerSecond = mShotsDone * 1000.0f / elapsed;
+        }
+        Log.i(TAG, "Burst: " + mShotsDone + " shots in " + elapsed + "ms ("
+                + mShotsPerSecond + " shots/s)");
     }
 
+    // Runs in main thread
     private void tryTakeShot() {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mSnapManager.setBypassProcessing(true);
-                mSnapManager.queueSnapshot(true, 0);
-            }
-        });
+        if (!mBurstInProgress || (mBurstCount != 0 && mShotsRequested >= mBurstCount)) {
+            return;
+        }
+
+        // Keep as many shots in flight as the saver can write concurrently
+        int inFlight = Math.min(mSnapManager.getImageSaverThreadCount(), MAX_SHOTS_IN_FLIGHT);
+        if (mShotsRequested - mShotsDone >= inFlight) {
+            return;
+        }
+
+        mShotsRequested++;
+        mSnapManager.setBypassProcessing(true);
+        mSnapManager.queueSnapshot(true, 0);
     }
 
+    private Runnable mTryTakeShotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tryTakeShot();
+        }
+    };
+
     @Override
     public void onShutterButtonClicked(ShutterButton button) {
         if (mBurstInProgress) {
@@ -91,7 +139,8 @@ public class BurstCapture extends CaptureTransformer {
 
     @Override
     public void onSnapshotShutter(final SnapshotManager.SnapshotInfo info) {
-
+        // The camera is free again: start the next shot while this one is being saved
+        mHandler.post(mTryTakeShotRunnable);
     }
 
     @Override
@@ -107,16 +156,24 @@ public class BurstCapture extends CaptureTransformer {
     @Override
     public void onSnapshotSaved(SnapshotManager.SnapshotInfo info) {
         // XXX: Show it in the quick review drawer
-        if (!mBurstInProgress) {
-            return;
-        }
-
-        mShotsDone++;
-        Log.v(TAG, "Done " + mShotsDone + " shots");
-
-        if (mShotsDone < mBurstCount || mBurstCount == 0) {
-            tryTakeShot();
-        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mBurstInProgress) {
+                    return;
+                }
+
+                mShotsDone++;
+                Log.v(TAG, "Done " + mShotsDone + " shots");
+
+                if (mShotsDone < mBurstCount || mBurstCount == 0) {
+                    tryTakeShot();
+                } else if (mShotsDone == mBurstCount) {
+                    reportShotsPerSecond();
+                    mSnapManager.setShotKind(StorageMonitor.SHOT_NORMAL);
+                }
+            }
+        });
     }
 
     @Override
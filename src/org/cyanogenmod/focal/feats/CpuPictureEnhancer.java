@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Automatic photo enhancement on the CPU, for when no GL context is available. It
+ * does what AutoPictureEnhancer asks the GL effects: the levels are stretched from
+ * black 0.1 / white 0.8 to the full range, then the local contrast is fixed by
+ * equalizing the luminance histogram of each cell of a grid, blended with the
+ * original luminance.
+ *
+ * The picture is processed as packed ARGB pixels, in bands of rows: the calling
+ * thread takes care of the first one, and workers of the others. Both passes only
+ * work on rows independently, so a picture can also be fed by stripes of rows with
+ * stretchLevels() then fixContrast(), without ever holding all its pixels at once.
+ */
+public class CpuPictureEnhancer {
+    public final static String TAG = "CpuPictureEnhancer";
+
+    // Same settings as the GL effects
+    private final static float BLACK = .1f;
+    private final static float WHITE = .8f;
+    private final static float AUTOFIX_SCALE = .4f;
+
+    // The local contrast is fixed on a grid of GRID_SIZE x GRID_SIZE cells
+    private final static int GRID_SIZE = 8;
+    // Histogram bins are clipped to this many times the average count, so that
+    // flat areas don't get their noise amplified
+    private final static int CLIP_LIMIT = 3;
+
+    private ExecutorService mExecutor;
+    private final int mParallelism;
+    // Levels lookup table
+    private final int[] mLevels = new int[256];
+
+    /**
+     * @param parallelism Number of threads to use, or 0 for the number of cores
+     */
+    public CpuPictureEnhancer(int parallelism) {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        mParallelism = parallelism;
+
+        final float black = BLACK * 255;
+        final float range = (WHITE - BLACK) * 255;
+        for (int i = 0; i < 256; i++) {
+            mLevels[i] = clamp(Math.round((i - black) * 255 / range));
+        }
+    }
+
+    /**
+     * Enhances a picture, in place
+     *
+     * @param argb The packed ARGB pixels of the picture
+     * @param width The width of the picture
+     * @param height The height of the picture
+     */
+    public void enhance(int[] argb, int width, int height) {
+        int[][] histograms = newHistograms();
+        stretchLevels(argb, width, height, 0, height, histograms);
+        fixContrast(argb, width, height, 0, height, getCurves(histograms));
+    }
+
+    /**
+     * @return Empty luminance histograms, to fill with stretchLevels()
+     */
+    public static int[][] newHistograms() {
+        return new int[GRID_SIZE * GRID_SIZE][256];
+    }
+
+    /**
+     * First pass: stretches the levels of some rows of a picture, in place, and adds
+     * them to the luminance histograms of the picture
+     *
+     * @param argb The packed ARGB pixels of the rows, from index 0
+     * @param width The width of the picture
+     * @param height The height of the picture
+     * @param firstRow The first row held by argb
+     * @param lastRow The row after the last one held by argb
+     * @param histograms The histograms of the picture
+     */
+    public void stretchLevels(int[] argb, int width, int height, int firstRow, int lastRow,
+                              int[][] histograms) {
+        checkRows(argb, width, firstRow, lastRow);
+
+        List<LevelsBand> bands = new ArrayList<LevelsBand>();
+        final int rowsPerBand = getRowsPerBand(lastRow - firstRow);
+        for (int first = firstRow; first < lastRow; first += rowsPerBand) {
+            bands.add(new LevelsBand(argb, width, height, firstRow, first,
+                    Math.min(first + rowsPerBand, lastRow)));
+        }
+        runAll(bands);
+
+        for (LevelsBand band : bands) {
+            for (int cell = 0; cell < histograms.length; cell++) {
+                final int[] partial = band.mHistograms[cell];
+                final int[] histogram = histograms[cell];
+                for (int v = 0; v < 256; v++) {
+                    histogram[v] += partial[v];
+                }
+            }
+        }
+    }
+
+    /**
+     * @param histograms The histograms of the whole picture
+     * @return The local contrast curves of the picture, for fixContrast()
+     */
+    public static int[][] getCurves(int[][] histograms) {
+        final int[][] luts = new int[histograms.length][];
+        for (int cell = 0; cell < histograms.length; cell++) {
+            luts[cell] = equalize(histograms[cell]);
+        }
+        return luts;
+    }
+
+    /**
+     * Second pass: fixes the local contrast of some rows of a picture, in place
+     *
+     * @param argb The packed ARGB pixels of the rows, from index 0
+     * @param width The width of the picture
+     * @param height The height of the picture
+     * @param firstRow The first row held by argb
+     * @param lastRow The row after the last one held by argb
+     * @param curves The curves of the picture
+     */
+    public void fixContrast(int[] argb, int width, int height, int firstRow, int lastRow,
+                            int[][] curves) {
+        checkRows(argb, width, firstRow, lastRow);
+
+        List<ContrastBand> bands = new ArrayList<ContrastBand>();
+        final int rowsPerBand = getRowsPerBand(lastRow - firstRow);
+        for (int first = firstRow; first < lastRow; first += rowsPerBand) {
+            bands.add(new ContrastBand(argb, width, height, curves, firstRow, first,
+                    Math.min(first + rowsPerBand, lastRow)));
+        }
+        runAll(bands);
+    }
+
+    /**
+     * Stops the workers. The enhancer may be used again afterwards, in which case
+     * they are started again.
+     */
+    public synchronized void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    private int getRowsPerBand(int rows) {
+        final int bands = Math.max(1, Math.min(mParallelism, rows));
+        return (rows + bands - 1) / bands;
+    }
+
+    private static void checkRows(int[] argb, int width, int firstRow, int lastRow) {
+        if (argb.length < width * (lastRow - firstRow)) {
+            throw new IllegalArgumentException("Pixel buffer too small for rows "
+                    + firstRow + " to " + lastRow);
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(mParallelism - 1, new ThreadFactory() {
+                private int mCount = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, TAG + "-" + (mCount++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    // Hands bands 1..n-1 to the workers, and runs the first one on the calling thread
+    private void runAll(List<? extends Runnable> bands) {
+        if (bands.isEmpty()) {
+            return;
+        }
+        if (bands.size() == 1) {
+            bands.get(0).run();
+            return;
+        }
+
+        final ExecutorService executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands.size() - 1);
+        for (int i = 1; i < bands.size(); i++) {
+            futures.add(executor.submit(bands.get(i)));
+        }
+        bands.get(0).run();
+
+        for (Future<?> future : futures) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // The pixels are still being written, we can't leave now
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Enhancement failed", e.getCause());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The clipped histogram equalization curve of a histogram
+     */
+    private static int[] equalize(int[] histogram) {
+        int total = 0;
+        for (int v = 0; v < 256; v++) {
+            total += histogram[v];
+        }
+
+        final int[] lut = new int[256];
+        if (total == 0) {
+            for (int v = 0; v < 256; v++) {
+                lut[v] = v;
+            }
+            return lut;
+        }
+
+        // Clip the bins, and spread what was clipped over all of them
+        final int limit = Math.max(1, CLIP_LIMIT * total / 256);
+        int excess = 0;
+        for (int v = 0; v < 256; v++) {
+            excess += Math.max(0, histogram[v] - limit);
+        }
+        final int spread = excess / 256;
+
+        long cumulated = 0;
+        for (int v = 0; v < 256; v++) {
+            cumulated += Math.min(histogram[v], limit) + spread;
+            lut[v] = clamp((int) (cumulated * 255 / total));
+        }
+        return lut;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static int luminance(int r, int g, int b) {
+        return (77 * r + 150 * g + 29 * b) >> 8;
+    }
+
+    /**
+     * A range of rows [mFirstRow, mLastRow[ to stretch, and to gather the
+     * histograms of. The pixels array starts at row mOffsetRow.
+     */
+    private class LevelsBand implements Runnable {
+        private final int[] mArgb;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFirstRow;
+        private final int mLastRow;
+        private final int mOffsetRow;
+        final int[][] mHistograms = newHistograms();
+
+        public LevelsBand(int[] argb, int width, int height, int offsetRow,
+                          int firstRow, int lastRow) {
+            mArgb = argb;
+            mWidth = width;
+            mHeight = height;
+            mOffsetRow = offsetRow;
+            mFirstRow = firstRow;
+            mLastRow = lastRow;
+        }
+
+        @Override
+        public void run() {
+            final int[] levels = mLevels;
+            for (int j = mFirstRow; j < mLastRow; j++) {
+                final int cellRow = j * GRID_SIZE / mHeight * GRID_SIZE;
+                int i = (j - mOffsetRow) * mWidth;
+                for (int x = 0; x < mWidth; x++, i++) {
+                    final int p = mArgb[i];
+                    final int r = levels[(p >> 16) & 0xFF];
+                    final int g = levels[(p >> 8) & 0xFF];
+                    final int b = levels[p & 0xFF];
+                    mArgb[i] = (p & 0xFF000000) | (r << 16) | (g << 8) | b;
+                    mHistograms[cellRow + x * GRID_SIZE / mWidth][luminance(r, g, b)]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * A range of rows [mFirstRow, mLastRow[ to fix the local contrast of. The curves
+     * of the four nearest cells are interpolated, so that no cell edge shows. The
+     * pixels array starts at row mOffsetRow.
+     */
+    private static class ContrastBand implements Runnable {
+        private final int[] mArgb;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[][] mLuts;
+        private final int mOffsetRow;
+        private final int mFirstRow;
+        private final int mLastRow;
+
+        public ContrastBand(int[] argb, int width, int height, int[][] luts,
+                            int offsetRow, int firstRow, int lastRow) {
+            mArgb = argb;
+            mWidth = width;
+            mHeight = height;
+            mLuts = luts;
+            mOffsetRow = offsetRow;
+            mFirstRow = firstRow;
+            mLastRow = lastRow;
+        }
+
+        @Override
+        public void run() {
+            final float cellWidth = (float) mWidth / GRID_SIZE;
+            final float cellHeight = (float) mHeight / GRID_SIZE;
+
+            for (int j = mFirstRow; j < mLastRow; j++) {
+                // Position relative to the cell centers
+                final float cy = Math.max(0, Math.min(GRID_SIZE - 1,
+                        (j + .5f) / cellHeight - .5f));
+                final int y0 = Math.min((int) cy, GRID_SIZE - 2);
+                final float fy = cy - y0;
+
+                int i = (j - mOffsetRow) * mWidth;
+                for (int x = 0; x < mWidth; x++, i++) {
+                    final float cx = Math.max(0, Math.min(GRID_SIZE - 1,
+                            (x + .5f) / cellWidth - .5f));
+                    final int x0 = Math.min((int) cx, GRID_SIZE - 2);
+                    final float fx = cx - x0;
+
+                    final int p = mArgb[i];
+                    final int r = (p >> 16) & 0xFF;
+                    final int g = (p >> 8) & 0xFF;
+                    final int b = p & 0xFF;
+                    final int y = luminance(r, g, b);
+
+                    final int cell = y0 * GRID_SIZE + x0;
+                    final float top = mLuts[cell][y] * (1 - fx) + mLuts[cell + 1][y] * fx;
+                    final float bottom = mLuts[cell + GRID_SIZE][y] * (1 - fx)
+                            + mLuts[cell + GRID_SIZE + 1][y] * fx;
+                    final float equalized = top * (1 - fy) + bottom * fy;
+
+                    // Shift the channels by the change of luminance, to keep the hue
+                    final int delta = Math.round((equalized - y) * AUTOFIX_SCALE);
+                    mArgb[i] = (p & 0xFF000000) | (clamp(r + delta) << 16)
+                            | (clamp(g + delta) << 8) | clamp(b + delta);
+                }
+            }
+        }
+    }
+}
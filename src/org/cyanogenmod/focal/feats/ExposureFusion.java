@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+import java.util.Arrays;
+
+/**
+ * Exposure fusion (Mertens, Kautz and Van Reeth), as done by enfuse: each pixel of
+ * each exposure is weighted by its contrast, its saturation and how well exposed it
+ * is, and the exposures are blended with these weights in a Laplacian pyramid, so
+ * that the weights don't show as seams.
+ *
+ * The exposures are fused by tiles of packed ARGB pixels. Tiles are independent, so
+ * they can be fused by several threads at once, each with its own Workspace, which
+ * holds the pyramids and is reused from one tile to the next. The pyramids repeat
+ * the edges of the tile, so a tile is only close to the same area of a fusion of the
+ * whole picture: the caller gives it a margin, where the differences stay. The
+ * brackets are aligned beforehand with computeShift(), which compares median
+ * threshold bitmaps (Ward), as those don't depend on the exposure.
+ */
+public class ExposureFusion {
+    public final static String TAG = "ExposureFusion";
+
+    // Standard deviation of the well-exposedness gaussian, around mid-gray
+    private final static float EXPOSEDNESS_SIGMA = .2f;
+    // Added to the weights, so that pixels weighted 0 everywhere get an average
+    private final static float EPSILON = 1e-12f;
+    // Pixels closer than this to the median are ignored by the alignment, as noise
+    // flips them from one exposure to the other
+    private final static int ALIGN_NOISE = 4;
+
+    // Well-exposedness of each channel value
+    private final static float[] sExposedness = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            final float d = i / 255.f - .5f;
+            sExposedness[i] = (float) Math.exp(-d * d
+                    / (2 * EXPOSEDNESS_SIGMA * EXPOSEDNESS_SIGMA));
+        }
+    }
+
+    private final int mLevels;
+
+    /**
+     * Buffers of a fusion, grown to the largest tile fused with them and kept for the
+     * next tiles. A workspace must only be used by one thread at a time.
+     */
+    public static class Workspace {
+        // Weights of each exposure, as gaussian pyramids
+        private float[][][] mWeights;
+        private float[][] mBlended;
+        private float[][] mLaplacian;
+        private float[] mGray;
+        private float[] mPlane;
+        // Half-filtered rows of reduce() and expand(), and output of expand()
+        private float[] mRows;
+        private float[] mExpanded;
+
+        private void ensure(int count, int[] widths, int[] heights) {
+            final int size = widths[0] * heights[0];
+            if (mWeights == null || mWeights.length < count) {
+                mWeights = new float[count][][];
+            }
+            for (int k = 0; k < count; k++) {
+                mWeights[k] = ensure(mWeights[k], widths, heights);
+            }
+            mBlended = ensure(mBlended, widths, heights);
+            mLaplacian = ensure(mLaplacian, widths, heights);
+            mGray = ensure(mGray, size);
+            mPlane = ensure(mPlane, size);
+            mRows = ensure(mRows, size);
+            mExpanded = ensure(mExpanded, size);
+        }
+
+        private static float[][] ensure(float[][] pyramid, int[] widths, int[] heights) {
+            if (pyramid == null || pyramid.length < widths.length) {
+                final float[][] grown = new float[widths.length][];
+                if (pyramid != null) {
+                    System.arraycopy(pyramid, 0, grown, 0, pyramid.length);
+                }
+                pyramid = grown;
+            }
+            for (int l = 0; l < widths.length; l++) {
+                pyramid[l] = ensure(pyramid[l], widths[l] * heights[l]);
+            }
+            return pyramid;
+        }
+
+        private static float[] ensure(float[] buffer, int size) {
+            return (buffer == null || buffer.length < size) ? new float[size] : buffer;
+        }
+    }
+
+    /**
+     * @param levels The number of levels of the pyramids. A tile must have about
+     *               2^levels pixels of margin for the tile edges not to show.
+     */
+    public ExposureFusion(int levels) {
+        mLevels = levels;
+    }
+
+    /**
+     * @param count The number of exposures
+     * @param pixels The number of pixels of the largest tile
+     * @return About how many bytes a workspace takes once it fused such tiles
+     */
+    public static long getWorkspaceSize(int count, int pixels) {
+        // Pyramids take 4/3 of their base: the weights of each exposure, the blended
+        // and the Laplacian pyramids, then 4 flat buffers
+        return (long) pixels * 4 * ((count + 2) * 4 + 4 * 3) / 3;
+    }
+
+    /**
+     * Fuses the same tile of several exposures. This can be called by several
+     * threads at once, with a workspace each.
+     *
+     * @param inputs The packed ARGB pixels of the tile, in each exposure
+     * @param width The width of the tile
+     * @param height The height of the tile
+     * @param output The packed ARGB pixels of the fused tile
+     * @param workspace The buffers of the calling thread
+     */
+    public void fuse(int[][] inputs, int width, int height, int[] output,
+                     Workspace workspace) {
+        final int count = inputs.length;
+        final int size = width * height;
+
+        // Size of each level
+        int levels = 1;
+        while (levels < mLevels && Math.min(width >> levels, height >> levels) >= 2) {
+            levels++;
+        }
+        final int[] widths = new int[levels];
+        final int[] heights = new int[levels];
+        widths[0] = width;
+        heights[0] = height;
+        for (int l = 1; l < levels; l++) {
+            widths[l] = (widths[l - 1] + 1) / 2;
+            heights[l] = (heights[l - 1] + 1) / 2;
+        }
+
+        workspace.ensure(count, widths, heights);
+        final float[] rows = workspace.mRows;
+        final float[] expanded = workspace.mExpanded;
+
+        // Normalized weights of each exposure, as gaussian pyramids
+        final float[][][] weights = workspace.mWeights;
+        for (int k = 0; k < count; k++) {
+            computeWeights(inputs[k], width, height, weights[k][0], workspace.mGray);
+        }
+        for (int i = 0; i < size; i++) {
+            float sum = 0;
+            for (int k = 0; k < count; k++) {
+                sum += weights[k][0][i];
+            }
+            for (int k = 0; k < count; k++) {
+                weights[k][0][i] /= sum;
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            gaussianPyramid(weights[k], widths, heights, levels, rows);
+        }
+
+        // Blend the Laplacian pyramids of each channel, and collapse the result
+        final float[][] blended = workspace.mBlended;
+        final float[][] laplacian = workspace.mLaplacian;
+        final float[] plane = workspace.mPlane;
+        for (int c = 0; c < 3; c++) {
+            final int shift = 16 - c * 8;
+            for (int l = 0; l < levels; l++) {
+                Arrays.fill(blended[l], 0, widths[l] * heights[l], 0);
+            }
+
+            for (int k = 0; k < count; k++) {
+                final int[] pixels = inputs[k];
+                for (int i = 0; i < size; i++) {
+                    plane[i] = (pixels[i] >> shift) & 0xFF;
+                }
+
+                laplacianPyramid(plane, laplacian, widths, heights, levels, rows, expanded);
+                for (int l = 0; l < levels; l++) {
+                    final float[] b = blended[l];
+                    final float[] lap = laplacian[l];
+                    final float[] w = weights[k][l];
+                    final int n = widths[l] * heights[l];
+                    for (int i = 0; i < n; i++) {
+                        b[i] += w[i] * lap[i];
+                    }
+                }
+            }
+
+            collapse(blended, widths, heights, levels, rows, expanded);
+            final float[] result = blended[0];
+            for (int i = 0; i < size; i++) {
+                final int v = Math.round(result[i]);
+                final int value = v < 0 ? 0 : (v > 255 ? 255 : v);
+                if (c == 0) {
+                    output[i] = 0xFF000000 | (value << shift);
+                } else {
+                    output[i] |= value << shift;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the translation aligning a picture on a reference picture of the same
+     * size. The search starts on a coarse version of the pictures, and is refined
+     * at each level, so shifts of up to 2^levels pixels are found.
+     *
+     * @param reference The grayscale pixels of the reference picture
+     * @param picture The grayscale pixels of the picture to align
+     * @param width The width of the pictures
+     * @param height The height of the pictures
+     * @param levels The number of coarser levels to search
+     * @return {dx, dy}: the pixel (x, y) of the reference shows what the pixel
+     *         (x + dx, y + dy) of the picture shows
+     */
+    public static int[] computeShift(byte[] reference, byte[] picture, int width, int height,
+                                     int levels) {
+        int dx = 0;
+        int dy = 0;
+        if (levels > 0 && Math.min(width, height) >= 32) {
+            int[] coarse = computeShift(halve(reference, width, height),
+                    halve(picture, width, height), width / 2, height / 2, levels - 1);
+            dx = coarse[0] * 2;
+            dy = coarse[1] * 2;
+        }
+
+        return refineShift(reference, picture, width, height, dx, dy, 1);
+    }
+
+    /**
+     * Finds the translation aligning a picture on a reference picture of the same
+     * size, among the ones at most radius pixels away from an estimate. This is used
+     * to bring a shift found on downsampled pictures to full resolution precision.
+     *
+     * @param reference The grayscale pixels of the reference picture
+     * @param picture The grayscale pixels of the picture to align
+     * @param width The width of the pictures
+     * @param height The height of the pictures
+     * @param dx, dy The estimated shift
+     * @param radius How far from the estimate to search
+     * @return {dx, dy}, as returned by computeShift()
+     */
+    public static int[] refineShift(byte[] reference, byte[] picture, int width, int height,
+                                    int dx, int dy, int radius) {
+        final byte[] refBitmap = thresholdBitmap(reference);
+        final byte[] picBitmap = thresholdBitmap(picture);
+
+        int bestX = dx;
+        int bestY = dy;
+        double bestCost = Double.MAX_VALUE;
+        for (int sy = dy - radius; sy <= dy + radius; sy++) {
+            for (int sx = dx - radius; sx <= dx + radius; sx++) {
+                final double cost = countDifferences(refBitmap, picBitmap, width, height,
+                        sx, sy);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestX = sx;
+                    bestY = sy;
+                }
+            }
+        }
+
+        return new int[] { bestX, bestY };
+    }
+
+    /**
+     * @return The grayscale pixels of packed ARGB pixels
+     */
+    public static byte[] toGray(int[] argb, int size) {
+        byte[] gray = new byte[size];
+        for (int i = 0; i < size; i++) {
+            final int p = argb[i];
+            gray[i] = (byte) ((77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF)
+                    + 29 * (p & 0xFF)) >> 8);
+        }
+        return gray;
+    }
+
+    /**
+     * Computes the weight of each pixel: contrast x saturation x well-exposedness
+     */
+    private static void computeWeights(int[] argb, int width, int height, float[] weights,
+                                       float[] gray) {
+        final int size = width * height;
+
+        for (int i = 0; i < size; i++) {
+            final int p = argb[i];
+            final int ri = (p >> 16) & 0xFF;
+            final int gi = (p >> 8) & 0xFF;
+            final int bi = p & 0xFF;
+            final float r = ri / 255.f;
+            final float g = gi / 255.f;
+            final float b = bi / 255.f;
+
+            final float mean = (r + g + b) / 3;
+            final float saturation = (float) Math.sqrt(((r - mean) * (r - mean)
+                    + (g - mean) * (g - mean) + (b - mean) * (b - mean)) / 3);
+            weights[i] = saturation * sExposedness[ri] * sExposedness[gi] * sExposedness[bi];
+            gray[i] = .299f * r + .587f * g + .114f * b;
+        }
+
+        // Contrast: absolute response of a Laplacian filter on the grayscale picture
+        for (int y = 0; y < height; y++) {
+            final int up = Math.max(y - 1, 0) * width;
+            final int down = Math.min(y + 1, height - 1) * width;
+            final int row = y * width;
+            for (int x = 0; x < width; x++) {
+                final int left = Math.max(x - 1, 0);
+                final int right = Math.min(x + 1, width - 1);
+                final float contrast = Math.abs(gray[up + x] + gray[down + x]
+                        + gray[row + left] + gray[row + right] - 4 * gray[row + x]);
+                weights[row + x] = weights[row + x] * contrast + EPSILON;
+            }
+        }
+    }
+
+    /**
+     * Fills the levels 1..levels-1 of a pyramid from its first level
+     */
+    private static void gaussianPyramid(float[][] pyramid, int[] widths, int[] heights,
+                                        int levels, float[] rows) {
+        for (int l = 1; l < levels; l++) {
+            reduce(pyramid[l - 1], widths[l - 1], heights[l - 1],
+                    pyramid[l], widths[l], heights[l], rows);
+        }
+    }
+
+    private static void laplacianPyramid(float[] base, float[][] pyramid, int[] widths,
+                                         int[] heights, int levels, float[] rows,
+                                         float[] expanded) {
+        System.arraycopy(base, 0, pyramid[0], 0, widths[0] * heights[0]);
+        gaussianPyramid(pyramid, widths, heights, levels, rows);
+        for (int l = 0; l < levels - 1; l++) {
+            expand(pyramid[l + 1], widths[l + 1], heights[l + 1],
+                    expanded, widths[l], heights[l], rows);
+            final float[] level = pyramid[l];
+            final int n = widths[l] * heights[l];
+            for (int i = 0; i < n; i++) {
+                level[i] -= expanded[i];
+            }
+        }
+    }
+
+    /**
+     * Collapses a Laplacian pyramid, in place: the result is its first level
+     */
+    private static void collapse(float[][] pyramid, int[] widths, int[] heights, int levels,
+                                 float[] rows, float[] expanded) {
+        for (int l = levels - 2; l >= 0; l--) {
+            expand(pyramid[l + 1], widths[l + 1], heights[l + 1],
+                    expanded, widths[l], heights[l], rows);
+            final float[] level = pyramid[l];
+            final int n = widths[l] * heights[l];
+            for (int i = 0; i < n; i++) {
+                level[i] = expanded[i] + level[i];
+            }
+        }
+    }
+
+    /**
+     * Blurs with the 5-tap binomial kernel, and keeps one pixel out of two
+     */
+    private static void reduce(float[] src, int sw, int sh, float[] dst, int dw, int dh,
+                               float[] rows) {
+        for (int y = 0; y < sh; y++) {
+            final int row = y * sw;
+            for (int x = 0; x < dw; x++) {
+                final int c = 2 * x;
+                rows[y * dw + x] = (src[row + Math.max(c - 2, 0)]
+                        + 4 * src[row + Math.max(c - 1, 0)]
+                        + 6 * src[row + Math.min(c, sw - 1)]
+                        + 4 * src[row + Math.min(c + 1, sw - 1)]
+                        + src[row + Math.min(c + 2, sw - 1)]) / 16;
+            }
+        }
+
+        for (int y = 0; y < dh; y++) {
+            final int c = 2 * y;
+            final int r0 = Math.max(c - 2, 0) * dw;
+            final int r1 = Math.max(c - 1, 0) * dw;
+            final int r2 = Math.min(c, sh - 1) * dw;
+            final int r3 = Math.min(c + 1, sh - 1) * dw;
+            final int r4 = Math.min(c + 2, sh - 1) * dw;
+            for (int x = 0; x < dw; x++) {
+                dst[y * dw + x] = (rows[r0 + x] + 4 * rows[r1 + x] + 6 * rows[r2 + x]
+                        + 4 * rows[r3 + x] + rows[r4 + x]) / 16;
+            }
+        }
+    }
+
+    /**
+     * Doubles the size, interpolating with the same kernel as reduce()
+     */
+    private static void expand(float[] src, int sw, int sh, float[] dst, int dw, int dh,
+                               float[] rows) {
+        for (int y = 0; y < sh; y++) {
+            final int row = y * sw;
+            for (int x = 0; x < dw; x++) {
+                final int i = x / 2;
+                final float value;
+                if ((x & 1) == 0) {
+                    value = (src[row + Math.max(i - 1, 0)] + 6 * src[row + Math.min(i, sw - 1)]
+                            + src[row + Math.min(i + 1, sw - 1)]) / 8;
+                } else {
+                    value = (src[row + Math.min(i, sw - 1)]
+                            + src[row + Math.min(i + 1, sw - 1)]) / 2;
+                }
+                rows[y * dw + x] = value;
+            }
+        }
+
+        for (int y = 0; y < dh; y++) {
+            final int i = y / 2;
+            final int r0 = Math.max(i - 1, 0) * dw;
+            final int r1 = Math.min(i, sh - 1) * dw;
+            final int r2 = Math.min(i + 1, sh - 1) * dw;
+            final boolean even = (y & 1) == 0;
+            for (int x = 0; x < dw; x++) {
+                dst[y * dw + x] = even
+                        ? (rows[r0 + x] + 6 * rows[r1 + x] + rows[r2 + x]) / 8
+                        : (rows[r1 + x] + rows[r2 + x]) / 2;
+            }
+        }
+    }
+
+    private static byte[] halve(byte[] src, int width, int height) {
+        final int hw = width / 2;
+        final int hh = height / 2;
+        final byte[] dst = new byte[hw * hh];
+        for (int y = 0; y < hh; y++) {
+            final int r0 = 2 * y * width;
+            final int r1 = r0 + width;
+            for (int x = 0; x < hw; x++) {
+                dst[y * hw + x] = (byte) (((src[r0 + 2 * x] & 0xFF) + (src[r0 + 2 * x + 1] & 0xFF)
+                        + (src[r1 + 2 * x] & 0xFF) + (src[r1 + 2 * x + 1] & 0xFF)) >> 2);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * @return For each pixel, bit 0 set if above the median, and bit 1 set if not
+     *         too close to it
+     */
+    private static byte[] thresholdBitmap(byte[] gray) {
+        final int[] histogram = new int[256];
+        for (byte v : gray) {
+            histogram[v & 0xFF]++;
+        }
+        int median = 0;
+        for (int count = 0; median < 255; median++) {
+            count += histogram[median];
+            if (count * 2 >= gray.length) break;
+        }
+
+        final byte[] bitmap = new byte[gray.length];
+        for (int i = 0; i < gray.length; i++) {
+            final int v = gray[i] & 0xFF;
+            bitmap[i] = (byte) ((v > median ? 1 : 0)
+                    | (Math.abs(v - median) > ALIGN_NOISE ? 2 : 0));
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return The share of the overlapping pixels that differ, so that larger
+     *         shifts, which compare fewer pixels, aren't favored
+     */
+    private static double countDifferences(byte[] reference, byte[] picture, int width,
+                                           int height, int dx, int dy) {
+        final int x0 = Math.max(0, -dx);
+        final int x1 = Math.min(width, width - dx);
+        final int y0 = Math.max(0, -dy);
+        final int y1 = Math.min(height, height - dy);
+        if (x1 <= x0 || y1 <= y0) {
+            return Double.MAX_VALUE;
+        }
+
+        long count = 0;
+        for (int y = y0; y < y1; y++) {
+            int i = y * width + x0;
+            int j = (y + dy) * width + x0 + dx;
+            for (int x = x0; x < x1; x++, i++, j++) {
+                final int a = reference[i];
+                final int b = picture[j];
+                if ((a & b & 2) != 0 && ((a ^ b) & 1) != 0) {
+                    count++;
+                }
+            }
+        }
+        return (double) count / ((long) (x1 - x0) * (y1 - y0));
+    }
+}
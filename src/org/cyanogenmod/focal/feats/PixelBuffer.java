@@ -19,16 +19,15 @@
 
 package org.cyanogenmod.focal.feats;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
-import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.Util;
 
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -43,7 +42,6 @@ import static javax.microedition.khronos.egl.EGL10.EGL_DEFAULT_DISPLAY;
 import static javax.microedition.khronos.egl.EGL10.EGL_DEPTH_SIZE;
 import static javax.microedition.khronos.egl.EGL10.EGL_GREEN_SIZE;
 import static javax.microedition.khronos.egl.EGL10.EGL_HEIGHT;
-import static javax.microedition.khronos.egl.EGL10.EGL_LARGEST_PBUFFER;
 import static javax.microedition.khronos.egl.EGL10.EGL_NONE;
 import static javax.microedition.khronos.egl.EGL10.EGL_NO_CONTEXT;
 import static javax.microedition.khronos.egl.EGL10.EGL_RED_SIZE;
@@ -84,36 +82,17 @@ public class PixelBuffer {
 
     String mThreadOwner;
 
+    // Read back pixels, kept for the next pictures
+    private ByteBuffer mPixels;
+    // Two rows of pixels, used to flip the read back pixels
+    private byte[] mRowBuffer;
+
     public PixelBuffer(Context context, int width, int height) {
         mWidth = width;
         mHeight = height;
         mContext = context;
 
         int[] version = new int[2];
-        int[] attribList = null;
-        final int mMaxTextureSize =
-                mContext.getResources().getInteger(R.integer.config_maxTextureSize);
-
-        if (mWidth < mMaxTextureSize && mHeight < mMaxTextureSize) {
-            // The texture is smaller than the maximum supported size, use it directly.
-            attribList = new int[] {
-                    EGL_WIDTH, mWidth,
-                    EGL_HEIGHT, mHeight,
-                    EGL_TEXTURE_FORMAT, EGL_TEXTURE_RGBA,
-                    EGL_TEXTURE_TARGET, EGL_TEXTURE_2D,
-                    EGL_NONE
-            };
-        } else {
-            // Use the maximum supported texture size.
-            attribList = new int[] {
-                    EGL_WIDTH, mMaxTextureSize,
-                    EGL_HEIGHT, mMaxTextureSize,
-                    EGL_LARGEST_PBUFFER, 1,
-                    EGL_TEXTURE_FORMAT, EGL_TEXTURE_RGBA,
-                    EGL_TEXTURE_TARGET, EGL_TEXTURE_2D,
-                    EGL_NONE
-            };
-        }
 
         // No error checking performed, minimum required code to elucidate logic
         mEGL = (EGL10) EGLContext.getEGL();
@@ -125,14 +104,71 @@ public class PixelBuffer {
         mEGLContext = mEGL.eglCreateContext(mEGLDisplay, mEGLConfig, EGL_NO_CONTEXT, new int[] {
                 EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE
         });
-        mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig,  attribList);
-        mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
+        createSurface();
         mGL = (GL10) mEGLContext.getGL();
 
         // Record thread owner of OpenGL context
         mThreadOwner = Thread.currentThread().getName();
     }
 
+    /**
+     * Changes the size of the rendered pictures. The context is kept, and the pbuffer
+     * is only created again if its size changes.
+     *
+     * @param width The new width
+     * @param height The new height
+     */
+    public void resize(int width, int height) {
+        // Does this thread own the OpenGL context?
+        if (!Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "resize: This thread does not own the OpenGL context.");
+            return;
+        }
+
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+
+        mWidth = width;
+        mHeight = height;
+
+        mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                EGL_NO_CONTEXT);
+        mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        createSurface();
+
+        if (mRenderer != null) {
+            mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
+        }
+    }
+
+    /**
+     * Destroys the OpenGL context. The PixelBuffer can't be used anymore afterwards.
+     */
+    public void release() {
+        mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                EGL_NO_CONTEXT);
+        mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
+        mEGL.eglTerminate(mEGLDisplay);
+        mRenderer = null;
+    }
+
+    private void createSurface() {
+        // Pictures larger than config_maxTextureSize are enhanced by tiles (see
+        // AutoEnhanceWorker), so the pbuffer always has the size of the picture
+        int[] attribList = new int[] {
+                EGL_WIDTH, mWidth,
+                EGL_HEIGHT, mHeight,
+                EGL_TEXTURE_FORMAT, EGL_TEXTURE_RGBA,
+                EGL_TEXTURE_TARGET, EGL_TEXTURE_2D,
+                EGL_NONE
+        };
+
+        mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig,  attribList);
+        mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
+    }
+
     public void setRenderer(GLSurfaceView.Renderer renderer) {
         mRenderer = renderer;
 
@@ -227,61 +263,47 @@ public class PixelBuffer {
     }
 
     private void convertToBitmap() {
-        System.gc();
-        Runtime.getRuntime().gc();
-
-        final int mMaxTextureSize =
-                mContext.getResources().getInteger(R.integer.config_maxTextureSize);
-        boolean isScaled = (mWidth > mMaxTextureSize || mHeight > mMaxTextureSize);
+        // The pixels are read in a direct buffer kept from one picture to the next,
+        // and flipped in place, so no frame-sized buffer is allocated nor copied
+        final int size = mWidth * mHeight * 4;
+        if (mPixels == null || mPixels.capacity() < size) {
+            mPixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        mPixels.clear();
+        mPixels.limit(size);
+        mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, mPixels);
 
-        int scaledWidth = isScaled ? mMaxTextureSize : mWidth;
-        int scaledHeight = isScaled ? mMaxTextureSize : mHeight;
+        // Convert upside down mirror-reversed image to right-side up normal image.
+        flipRows(mPixels, mWidth * 4, mHeight);
 
-        IntBuffer ib = IntBuffer.allocate(scaledWidth*scaledHeight);
-        IntBuffer ibt = IntBuffer.allocate(scaledWidth*scaledHeight);
-        mGL.glReadPixels(0, 0, scaledWidth, scaledHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
+        mPixels.rewind();
+        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        mBitmap.copyPixelsFromBuffer(mPixels);
+    }
 
-        // Convert upside down mirror-reversed image to right-side up normal image.
-        for (int i = 0; i < scaledHeight; i++) {
-            for (int j = 0; j < scaledWidth; j++) {
-                ibt.put((scaledHeight-i-1)*scaledWidth + j, ib.get(i*scaledWidth + j));
-            }
+    /**
+     * Flips an image upside down, in place, by swapping whole rows with bulk copies
+     *
+     * @param pixels The pixels of the image, from position 0
+     * @param stride The size of a row, in bytes
+     * @param height The number of rows
+     */
+    private void flipRows(ByteBuffer pixels, int stride, int height) {
+        if (mRowBuffer == null || mRowBuffer.length < stride * 2) {
+            mRowBuffer = new byte[stride * 2];
         }
-
-        mBitmap = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(ibt);
-
-        // Release IntBuffers memory
-        ibt = null;
-        ib = null;
-
-        if (isScaled) {
-            ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
-            ActivityManager activityManager =
-                    (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
-            activityManager.getMemoryInfo(mi);
-            long availableMegs = mi.availMem / 1048576L;
-            Log.d(TAG, "Available memory: " + availableMegs + "MB");
-            while (availableMegs < 200) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                Log.w(TAG, "Waiting for more memory! (Free: " + availableMegs + "MB)");
-                // We're going to need some memory
-                System.gc();
-                Runtime.getRuntime().gc();
-
-                activityManager.getMemoryInfo(mi);
-                availableMegs = mi.availMem / 1048576L;
-            }
-
-            // Image was converted to a power of two texture, scale it back
-            Log.v(TAG, "Image was scaled, scaling back to " + mWidth + "x" + mHeight);
-            Bitmap scaled = Bitmap.createScaledBitmap(mBitmap, mWidth, mHeight, true);
-            mBitmap.recycle();
-            mBitmap = scaled;
+        final byte[] rows = mRowBuffer;
+
+        for (int top = 0, bottom = height - 1; top < bottom; top++, bottom--) {
+            pixels.position(top * stride);
+            pixels.get(rows, 0, stride);
+            pixels.position(bottom * stride);
+            pixels.get(rows, stride, stride);
+
+            pixels.position(top * stride);
+            pixels.put(rows, stride, stride);
+            pixels.position(bottom * stride);
+            pixels.put(rows, 0, stride);
         }
     }
 }
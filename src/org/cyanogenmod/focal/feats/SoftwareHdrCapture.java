@@ -119,6 +119,7 @@ public class SoftwareHdrCapture extends CaptureTransformer {
     public void startBurstShot() {
         mShotsDone = 0;
         mBurstInProgress = true;
+        mSnapManager.setIntermediateShot(true);
         mSnapManager.queueSnapshot(true, getShotExposure(mShotsDone));
 
         // Open the quick review drawer
@@ -130,6 +131,7 @@ public class SoftwareHdrCapture extends CaptureTransformer {
             @Override
             public void run() {
                 mSnapManager.setBypassProcessing(true);
+                mSnapManager.setIntermediateShot(true);
                 mSnapManager.queueSnapshot(true, getShotExposure(mShotsDone));
             }
         });
@@ -20,45 +20,61 @@
 package org.cyanogenmod.focal.feats;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.util.Log;
 
+import org.cyanogenmod.focal.CaptureJournal;
+import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.StorageMonitor;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Manages the processing of multiple shots into one HDR shot
+ * Manages the processing of multiple shots into one HDR shot. The shots are aligned
+ * on the middle one, and fused in process by tiles (see ExposureFusion), several
+ * tiles at once. Only the tiles being fused and the output picture are in memory.
  */
 public class SoftwareHdrProcessor {
     public final static String TAG = "SoftwareHdr";
-    private String mPathPrefix;
+
+    // Size of the fused tiles, and margin decoded around them so that the edges of
+    // the pyramids stay out of the tile itself
+    private final static int TILE_SIZE = 512;
+    private final static int TILE_MARGIN = 128;
+    private final static int PYRAMID_LEVELS = 6;
+    private final static int MAX_TILE_PIXELS =
+            (TILE_SIZE + 2 * TILE_MARGIN) * (TILE_SIZE + 2 * TILE_MARGIN);
+
+    // The alignment runs on pictures at most this large, and finds shifts of up to
+    // 2^ALIGN_LEVELS pixels at that size
+    private final static int ALIGN_SIZE = 2048;
+    private final static int ALIGN_LEVELS = 5;
+    // The shifts found on downsampled pictures are then refined at full resolution,
+    // on a crop of this size at the center of the pictures
+    private final static int REFINE_SIZE = 1024;
+
     private File mTempPath;
     private List<Uri> mPictures;
     private SnapshotManager mSnapManager;
     private Uri mOutputUri;
     private String mOutputTitle;
     private Context mContext;
-    private BufferedReader mProcStdOut;
-    private BufferedReader mProcStdErr;
-
-    private Thread mOutputLogger = new Thread() {
-        public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(10);
-                    consumeProcLogs();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-    };
 
     public SoftwareHdrProcessor(Context context, SnapshotManager snapMan) {
         mSnapManager = snapMan;
@@ -73,67 +89,30 @@ public class SoftwareHdrProcessor {
         return mTempPath;
     }
 
-    private void run(String command) throws IOException {
-        Runtime rt = Runtime.getRuntime();
-        Process proc = rt.exec(command, new String[]{"PATH="+mPathPrefix+":/system/bin",
-                "LD_LIBRARY_PATH="+mPathPrefix+":/system/lib"});
-        mProcStdOut = new BufferedReader(new
-                InputStreamReader(proc.getInputStream()));
-        mProcStdErr = new BufferedReader(new
-                InputStreamReader(proc.getErrorStream()));
-
-        try {
-            proc.waitFor();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-    }
-
     public boolean render(final int orientation) {
-        mOutputLogger.start();
-
         // Prepare a temporary directory
         Log.d(TAG, "Preparing temp dir for Software HDR rendering...");
         File appFilesDir = mContext.getFilesDir();
-        mPathPrefix = appFilesDir.getAbsolutePath() + "/";
         String tempPathStr = appFilesDir.getAbsolutePath() + "/" + System.currentTimeMillis();
         mTempPath = new File(tempPathStr);
         mTempPath.mkdir();
-
+        CaptureJournal.getSingleton().record(CaptureJournal.STAGE_RENDERING, tempPathStr);
 
         // Process our images
         try {
-            if (!doAlignImageStack()) {
+            File output = new File(mTempPath, "final.jpg");
+            if (!doFuse(output)) {
                 return false;
             }
-            if (!doEnfuse()) {
-                return false;
-            }
-
-            // Save it to gallery
-            // XXX: This needs opening the output byte array...
-            // Isn't there any way to update gallery data without having to reload/save
-            // the JPEG file? Because we have it already, we could just move it.
-            byte[] jpegData;
-            RandomAccessFile f = new RandomAccessFile(mTempPath+"/final.jpg", "r");
-            try {
-                // Get and check length
-                long longlength = f.length();
-                int length = (int) longlength;
-                if (length != longlength) {
-                    throw new IOException("File size >= 2 GB");
-                }
-                // Read file and return data
-                jpegData = new byte[length];
-                f.readFully(jpegData);
-            } finally {
-                f.close();
-            }
 
+            // Move it to the gallery
             mSnapManager.prepareNamerUri(100,100);
             mOutputUri = mSnapManager.getNamerUri();
             mOutputTitle = mSnapManager.getNamerTitle();
-            mSnapManager.saveImage(mOutputUri, mOutputTitle, 100, 100, orientation, jpegData);
+            if (!mSnapManager.saveImageFile(mOutputUri, mOutputTitle, 100, 100, orientation,
+                    output, StorageMonitor.SHOT_HDR)) {
+                return false;
+            }
         } catch (IOException ex) {
             Log.e(TAG, "Unable to process: ", ex);
             return false;
@@ -142,60 +121,320 @@ public class SoftwareHdrProcessor {
         return true;
     }
 
-    private void consumeProcLogs() {
-        String line;
+    private boolean doFuse(File output) throws IOException {
+        Log.d(TAG, "Exposure fusion...");
+
+        List<String> paths = new ArrayList<String>();
+        for (Uri picture : mPictures) {
+            if (new File(picture.getPath()).exists()) {
+                paths.add(picture.getPath());
+            }
+        }
+        if (paths.isEmpty()) {
+            Log.e(TAG, "No picture to fuse");
+            return false;
+        }
+
+        final BitmapRegionDecoder[] decoders = new BitmapRegionDecoder[paths.size()];
+        Bitmap result = null;
         try {
-            if (mProcStdOut != null && mProcStdOut.ready()) {
-                while ((line = mProcStdOut.readLine()) != null) {
-                    Log.i(TAG, line);
-                }
+            for (int i = 0; i < decoders.length; i++) {
+                decoders[i] = BitmapRegionDecoder.newInstance(paths.get(i), false);
             }
 
-            if (mProcStdErr != null && mProcStdErr.ready()) {
-                while ((line = mProcStdErr.readLine()) != null) {
-                    Log.e(TAG, line);
+            final int width = decoders[0].getWidth();
+            final int height = decoders[0].getHeight();
+            for (BitmapRegionDecoder decoder : decoders) {
+                if (decoder.getWidth() != width || decoder.getHeight() != height) {
+                    Log.e(TAG, "The pictures to fuse don't have the same size");
+                    return false;
                 }
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error while consuming proc logs", e);
+
+            // The middle shot is the one at 0 EV
+            final int[][] shifts = align(paths, decoders, decoders.length / 2, width, height);
+            if (shifts == null) {
+                return false;
+            }
+
+            result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            if (!fuseTiles(decoders, shifts, result)) {
+                return false;
+            }
+
+            FileOutputStream out = new FileOutputStream(output);
+            try {
+                result.compress(Bitmap.CompressFormat.JPEG, 95, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            for (BitmapRegionDecoder decoder : decoders) {
+                if (decoder != null) decoder.recycle();
+            }
+            if (result != null) {
+                result.recycle();
+            }
         }
+
+        Log.d(TAG, "Exposure fusion... done");
+        return true;
     }
 
-    private boolean doAlignImageStack() throws IOException {
+    /**
+     * @return The shift of each picture relative to the reference one, or null if
+     *         a picture couldn't be decoded
+     */
+    private int[][] align(List<String> paths, BitmapRegionDecoder[] decoders, int reference,
+                          int width, int height) {
         Log.d(TAG, "Align Image Stack...");
 
-        String filesStr = "";
-        for (Uri picture : mPictures) {
-            if (new File(picture.getPath()).exists()) {
-                filesStr += " " + picture.getPath();
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1;
+        while (Math.max(width, height) / opts.inSampleSize > ALIGN_SIZE) {
+            opts.inSampleSize *= 2;
+        }
+
+        // Grayscale version of each picture, at the alignment size
+        byte[][] grays = new byte[paths.size()][];
+        int w = 0;
+        int h = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            Bitmap bitmap = BitmapFactory.decodeFile(paths.get(i), opts);
+            if (bitmap == null) {
+                Log.e(TAG, "Unable to decode " + paths.get(i));
+                return null;
             }
+            w = bitmap.getWidth();
+            h = bitmap.getHeight();
+            int[] pixels = new int[w * h];
+            bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+            bitmap.recycle();
+            grays[i] = ExposureFusion.toGray(pixels, w * h);
         }
 
-        run("align_image_stack -v -v -v -C -g 4 -a "+mTempPath+"/project " + filesStr);
-        consumeProcLogs();
+        int[][] shifts = new int[paths.size()][];
+        for (int i = 0; i < paths.size(); i++) {
+            if (i == reference) {
+                shifts[i] = new int[] { 0, 0 };
+                continue;
+            }
+            shifts[i] = ExposureFusion.computeShift(grays[reference], grays[i], w, h,
+                    ALIGN_LEVELS);
+            shifts[i][0] *= opts.inSampleSize;
+            shifts[i][1] *= opts.inSampleSize;
+        }
+
+        if (opts.inSampleSize > 1) {
+            // Only precise to inSampleSize pixels so far, which shows as double edges
+            if (!refineShifts(decoders, reference, width, height, opts.inSampleSize,
+                    shifts)) {
+                return null;
+            }
+        }
+        for (int i = 0; i < shifts.length; i++) {
+            Log.v(TAG, "Picture " + i + " shifted by " + shifts[i][0] + "," + shifts[i][1]);
+        }
 
         Log.d(TAG, "Align Image Stack... done");
+        return shifts;
+    }
+
+    /**
+     * Refines the shifts found on pictures downsampled by sampleSize, by searching
+     * around them on a full resolution crop of each picture
+     *
+     * @return False if a picture couldn't be decoded
+     */
+    private boolean refineShifts(BitmapRegionDecoder[] decoders, int reference, int width,
+                                 int height, int sampleSize, int[][] shifts) {
+        final int w = Math.min(REFINE_SIZE, width);
+        final int h = Math.min(REFINE_SIZE, height);
+        final Rect crop = new Rect((width - w) / 2, (height - h) / 2,
+                (width - w) / 2 + w, (height - h) / 2 + h);
+
+        byte[] refGray = decodeGray(decoders[reference], crop);
+        if (refGray == null) {
+            return false;
+        }
+
+        for (int i = 0; i < decoders.length; i++) {
+            if (i == reference) {
+                continue;
+            }
+            byte[] gray = decodeGray(decoders[i], crop);
+            if (gray == null) {
+                return false;
+            }
+            shifts[i] = ExposureFusion.refineShift(refGray, gray, w, h,
+                    shifts[i][0], shifts[i][1], sampleSize);
+        }
         return true;
     }
 
-    private boolean doEnfuse() throws IOException {
-        Log.d(TAG, "Enfuse...");
+    /**
+     * @return The grayscale pixels of a region of a picture, at full resolution, or
+     *         null if it couldn't be decoded
+     */
+    private static byte[] decodeGray(BitmapRegionDecoder decoder, Rect region) {
+        Bitmap bitmap = decoder.decodeRegion(region, null);
+        if (bitmap == null) {
+            Log.e(TAG, "Unable to decode the region " + region);
+            return null;
+        }
+
+        final int w = region.width();
+        final int h = region.height();
+        int[] pixels = new int[w * h];
+        bitmap.getPixels(pixels, 0, w, 0, 0, w, h);
+        bitmap.recycle();
+        return ExposureFusion.toGray(pixels, w * h);
+    }
+
+    /**
+     * Fuses the pictures tile by tile into the output bitmap. Each thread takes the
+     * next tile left, until there's none.
+     */
+    private boolean fuseTiles(final BitmapRegionDecoder[] decoders, final int[][] shifts,
+                              final Bitmap output) {
+        final int width = output.getWidth();
+        final int height = output.getHeight();
+        final int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        final int tiles = columns * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        final AtomicInteger nextTile = new AtomicInteger();
+        final ExposureFusion fusion = new ExposureFusion(PYRAMID_LEVELS);
+
+        int threads = mContext.getResources().getInteger(R.integer.config_hdrFusionThreads);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        threads = Math.min(threads, tiles);
+
+        // Each thread keeps its tiles and pyramids from one tile to the next: don't
+        // start more threads than the heap left can hold
+        final long bytesPerThread = (long) MAX_TILE_PIXELS * 4 * (decoders.length + 1)
+                + ExposureFusion.getWorkspaceSize(decoders.length, MAX_TILE_PIXELS);
+        final Runtime runtime = Runtime.getRuntime();
+        final long freeHeap = runtime.maxMemory() - runtime.totalMemory()
+                + runtime.freeMemory();
+        threads = (int) Math.max(1, Math.min(threads, freeHeap / bytesPerThread));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int mCount = 0;
 
-        // Build the list of output files. The convention set up by
-        // AlignImageStack is projectXXXX.tif, so we basically build that
-        // list out of the number of shots we fed to align_image_stack
-        String files = "";
-        for (int i = 0; i < mPictures.size(); i++) {
-            // Check if file exists, otherwise enfuse will fail
-            String filePath = mTempPath + "/" + String.format("project%04d.tif", i);
-            if (new File(filePath).exists()) {
-                files += " " + filePath;
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG + "-" + (mCount++));
             }
+        });
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    final int[][] inputs = new int[decoders.length][MAX_TILE_PIXELS];
+                    final int[] fused = new int[MAX_TILE_PIXELS];
+                    final ExposureFusion.Workspace workspace = new ExposureFusion.Workspace();
+                    final Rect padded = new Rect();
+
+                    int tile;
+                    while ((tile = nextTile.getAndIncrement()) < tiles) {
+                        final int x = (tile % columns) * TILE_SIZE;
+                        final int y = (tile / columns) * TILE_SIZE;
+                        padded.set(Math.max(0, x - TILE_MARGIN), Math.max(0, y - TILE_MARGIN),
+                                Math.min(width, x + TILE_SIZE + TILE_MARGIN),
+                                Math.min(height, y + TILE_SIZE + TILE_MARGIN));
+
+                        for (int i = 0; i < decoders.length; i++) {
+                            if (!readTile(decoders[i], shifts[i], padded, inputs[i])) {
+                                return false;
+                            }
+                        }
+
+                        final int pw = padded.width();
+                        fusion.fuse(inputs, pw, padded.height(), fused, workspace);
+
+                        // Only keep the tile itself, without its margin
+                        synchronized (output) {
+                            output.setPixels(fused, (y - padded.top) * pw + (x - padded.left), pw,
+                                    x, y, Math.min(TILE_SIZE, width - x),
+                                    Math.min(TILE_SIZE, height - y));
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        boolean success = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                success &= future.get();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while fusing", e);
+                success = false;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Unable to fuse the pictures", e.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Reads the pixels of a picture matching a region of the reference picture. The
+     * parts of the region falling out of the picture repeat its edges.
+     *
+     * @param decoder The decoder of the picture
+     * @param shift The shift of the picture relative to the reference picture
+     * @param region The region, in the reference picture
+     * @param pixels The packed ARGB pixels of the region
+     * @return False if the region couldn't be decoded
+     */
+    private static boolean readTile(BitmapRegionDecoder decoder, int[] shift, Rect region,
+                                    int[] pixels) {
+        final int w = region.width();
+        final int h = region.height();
+        Rect rect = new Rect(region);
+        rect.offset(shift[0], shift[1]);
+        if (!rect.intersect(0, 0, decoder.getWidth(), decoder.getHeight())) {
+            return false;
+        }
+
+        // BitmapRegionDecoder is shared by the fusing threads
+        Bitmap bitmap;
+        synchronized (decoder) {
+            bitmap = decoder.decodeRegion(rect, null);
+        }
+        if (bitmap == null) {
+            return false;
         }
-        run("enfuse -o "+mTempPath+"/final.jpg --compression=jpeg " + files);
-        consumeProcLogs();
 
-        Log.d(TAG, "Enfuse... done");
+        final int left = rect.left - region.left - shift[0];
+        final int top = rect.top - region.top - shift[1];
+        final int right = left + rect.width();
+        final int bottom = top + rect.height();
+        bitmap.getPixels(pixels, top * w + left, w, 0, 0, rect.width(), rect.height());
+        bitmap.recycle();
+
+        // Repeat the edges
+        for (int y = top; y < bottom; y++) {
+            final int row = y * w;
+            for (int x = 0; x < left; x++) {
+                pixels[row + x] = pixels[row + left];
+            }
+            for (int x = right; x < w; x++) {
+                pixels[row + x] = pixels[row + right - 1];
+            }
+        }
+        for (int y = 0; y < top; y++) {
+            System.arraycopy(pixels, top * w, pixels, y * w, w);
+        }
+        for (int y = bottom; y < h; y++) {
+            System.arraycopy(pixels, (bottom - 1) * w, pixels, y * w, w);
+        }
         return true;
     }
 }
@@ -28,8 +28,10 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
+import org.cyanogenmod.focal.CaptureJournal;
 import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.StagingStore;
 import org.cyanogenmod.focal.Util;
 import org.cyanogenmod.focal.picsphere.PicSphere;
 
@@ -116,14 +118,15 @@ public class SoftwareHdrRenderingService extends Service {
     }
 
     private void removeTempFiles(List<Uri> pictures, File tempPath) {
-        // Remove source pictures and temporary path
+        // Remove source pictures (staged out of the gallery) and temporary path
+        StagingStore staging = StagingStore.getSingleton(this);
         for (Uri uri : pictures) {
-            List<String> segments = uri.getPathSegments();
-            Util.removeFromGallery(getContentResolver(),
-                    Integer.parseInt(segments.get(segments.size() - 1)));
+            staging.remove(uri);
         }
 
-        tempPath.delete();
+        Util.deleteRecursively(tempPath);
+        CaptureJournal.getSingleton().record(CaptureJournal.STAGE_DONE,
+                tempPath.getAbsolutePath());
     }
 
     private Notification buildProgressNotification() {
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package org.cyanogenmod.focal.feats;
+
+/**
+ * Per-channel tone curve, applied to packed ARGB pixels. A curve can be learnt from
+ * a picture and its enhanced version: it then reproduces the global effect of the
+ * enhancement on pictures of any size, one piece at a time.
+ */
+public class ToneCurve {
+    public final static String TAG = "ToneCurve";
+
+    // Red, green and blue lookup tables
+    private final int[][] mLut = new int[3][256];
+
+    /**
+     * Learns the curve turning a picture into its enhanced version
+     *
+     * @param original The pixels of the original picture
+     * @param enhanced The pixels of the enhanced picture, of the same size
+     * @return The curve
+     */
+    public static ToneCurve fromSamples(int[] original, int[] enhanced) {
+        final long[][] sums = new long[3][256];
+        final int[][] counts = new int[3][256];
+        final int count = Math.min(original.length, enhanced.length);
+
+        for (int i = 0; i < count; i++) {
+            final int src = original[i];
+            final int dst = enhanced[i];
+            for (int c = 0; c < 3; c++) {
+                final int shift = 16 - c * 8;
+                final int v = (src >> shift) & 0xFF;
+                sums[c][v] += (dst >> shift) & 0xFF;
+                counts[c][v]++;
+            }
+        }
+
+        ToneCurve curve = new ToneCurve();
+        for (int c = 0; c < 3; c++) {
+            curve.fill(c, sums[c], counts[c]);
+        }
+        return curve;
+    }
+
+    /**
+     * Creates a curve from explicit lookup tables
+     *
+     * @param red, green, blue The 256 output values of each channel
+     */
+    public ToneCurve(int[] red, int[] green, int[] blue) {
+        System.arraycopy(red, 0, mLut[0], 0, 256);
+        System.arraycopy(green, 0, mLut[1], 0, 256);
+        System.arraycopy(blue, 0, mLut[2], 0, 256);
+    }
+
+    private ToneCurve() {
+    }
+
+    /**
+     * Applies the curve to pixels, in place. The alpha channel is kept.
+     *
+     * @param pixels The packed ARGB pixels
+     * @param offset The first pixel to change
+     * @param count The number of pixels to change
+     */
+    public void apply(int[] pixels, int offset, int count) {
+        final int[] red = mLut[0];
+        final int[] green = mLut[1];
+        final int[] blue = mLut[2];
+        final int end = offset + count;
+
+        for (int i = offset; i < end; i++) {
+            final int p = pixels[i];
+            pixels[i] = (p & 0xFF000000)
+                    | (red[(p >> 16) & 0xFF] << 16)
+                    | (green[(p >> 8) & 0xFF] << 8)
+                    | blue[p & 0xFF];
+        }
+    }
+
+    /**
+     * Fills a lookup table from the average output of each input value. Values that
+     * were not seen are interpolated, and the table is made non-decreasing so that
+     * the curve never inverts tones.
+     */
+    private void fill(int channel, long[] sums, int[] counts) {
+        final int[] lut = mLut[channel];
+        int previous = -1;
+
+        for (int v = 0; v < 256; v++) {
+            if (counts[v] == 0) {
+                continue;
+            }
+
+            lut[v] = (int) (sums[v] / counts[v]);
+            if (previous < 0) {
+                // Before the first value seen
+                for (int i = 0; i < v; i++) {
+                    lut[i] = lut[v] * i / Math.max(1, v);
+                }
+            } else {
+                for (int i = previous + 1; i < v; i++) {
+                    lut[i] = lut[previous] + (lut[v] - lut[previous]) * (i - previous)
+                            / (v - previous);
+                }
+            }
+            previous = v;
+        }
+
+        if (previous < 0) {
+            // Nothing seen: identity
+            for (int i = 0; i < 256; i++) {
+                lut[i] = i;
+            }
+            return;
+        }
+
+        // After the last value seen
+        for (int i = previous + 1; i < 256; i++) {
+            lut[i] = lut[previous] + (255 - lut[previous]) * (i - previous)
+                    / Math.max(1, 255 - previous);
+        }
+
+        for (int i = 1; i < 256; i++) {
+            if (lut[i] < lut[i - 1]) {
+                lut[i] = lut[i - 1];
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ import org.cyanogenmod.focal.CameraActivity;
 import org.cyanogenmod.focal.R;
 import org.cyanogenmod.focal.SnapshotManager;
 import org.cyanogenmod.focal.Storage;
+import org.cyanogenmod.focal.StorageMonitor;
 import org.cyanogenmod.focal.Util;
 import org.cyanogenmod.focal.feats.CaptureTransformer;
 import org.cyanogenmod.focal.ui.PanoProgressBar;
@@ -585,6 +586,7 @@ public class MosaicProxy extends CaptureTransformer
             }
 
             int jpegLength = (int) (new File(filePath).length());
+            StorageMonitor.getSingleton().onShotWritten(StorageMonitor.SHOT_PANO, jpegLength);
             return Storage.getStorage().addImage(mActivity.getContentResolver(), filename,
                     mTimeTaken, null, orientation, jpegLength, filePath, width, height);
         }
@@ -17,6 +17,8 @@
 
 package org.cyanogenmod.focal.pano;
 
+import org.cyanogenmod.focal.YuvDecoder;
+
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -44,44 +46,6 @@ public class PanoUtil {
     }
 
     public static void decodeYUV420SPQuarterRes(int[] rgb, byte[] yuv420sp, int width, int height) {
-        final int frameSize = width * height;
-
-        for (int j = 0, ypd = 0; j < height; j += 4) {
-            int uvp = frameSize + (j >> 1) * width, u = 0, v = 0;
-            for (int i = 0; i < width; i += 4, ypd++) {
-                int y = (0xff & (yuv420sp[j * width + i])) - 16;
-                if (y < 0) {
-                    y = 0;
-                }
-                if ((i & 1) == 0) {
-                    v = (0xff & yuv420sp[uvp++]) - 128;
-                    u = (0xff & yuv420sp[uvp++]) - 128;
-                    uvp += 2;  // Skip the UV values for the 4 pixels skipped in between
-                }
-                int y1192 = 1192 * y;
-                int r = (y1192 + 1634 * v);
-                int g = (y1192 - 833 * v - 400 * u);
-                int b = (y1192 + 2066 * u);
-
-                if (r < 0) {
-                    r = 0;
-                } else if (r > 262143) {
-                    r = 262143;
-                }
-                if (g < 0) {
-                    g = 0;
-                } else if (g > 262143) {
-                    g = 262143;
-                }
-                if (b < 0) {
-                    b = 0;
-                } else if (b > 262143) {
-                    b = 262143;
-                }
-
-                rgb[ypd] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) |
-                        ((b >> 10) & 0xff);
-            }
-        }
+        YuvDecoder.decodeNV21QuarterRes(yuv420sp, width, height, rgb);
     }
 }
@@ -24,7 +24,10 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 
+import org.cyanogenmod.focal.CaptureJournal;
 import org.cyanogenmod.focal.SnapshotManager;
+import org.cyanogenmod.focal.StagingStore;
+import org.cyanogenmod.focal.StorageMonitor;
 import org.cyanogenmod.focal.Util;
 import org.cyanogenmod.focal.XMPHelper;
 
@@ -32,7 +35,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -155,6 +157,7 @@ public class PicSphere {
         String tempPathStr = appFilesDir.getAbsolutePath() + "/" + System.currentTimeMillis();
         mTempPath = new File(tempPathStr);
         mTempPath.mkdir();
+        CaptureJournal.getSingleton().record(CaptureJournal.STAGE_RENDERING, tempPathStr);
         mProjectFile = mTempPath + "/project.pto";
 
         // Wait till all images are saved and accessible
@@ -216,14 +219,15 @@ public class PicSphere {
     }
 
     private void removeTempFiles() {
-        // Remove source pictures and temporary path
+        // Remove source pictures (staged out of the gallery) and temporary path
+        StagingStore staging = StagingStore.getSingleton(mContext);
         for (Uri uri : mPicturesUri) {
-            List<String> segments = uri.getPathSegments();
-            Util.removeFromGallery(mContext.getContentResolver(),
-                    Integer.parseInt(segments.get(segments.size()-1)));
+            staging.remove(uri);
         }
 
-        mTempPath.delete();
+        Util.deleteRecursively(mTempPath);
+        CaptureJournal.getSingleton().record(CaptureJournal.STAGE_DONE,
+                mTempPath.getAbsolutePath());
     }
 
     private void run(String command) throws IOException {
@@ -416,38 +420,17 @@ public class PicSphere {
 
         doExifTagging(opts.outWidth, opts.outHeight);
 
-        // Save it to gallery
-        // XXX: This needs opening the output byte array... Isn't there any way to update
-        // gallery data without having to reload/save the JPEG file? Because we have it already,
-        // we could just move it.
-        byte[] jpegData;
-        RandomAccessFile f = null;
-        try {
-            f = new RandomAccessFile(jpegPath, "r");
-
-            // Get and check length
-            long longlength = f.length();
-            int length = (int) longlength;
-            if (length != longlength)
-                throw new IOException("File size >= 2 GB");
-            // Read file and return data
-            jpegData = new byte[length];
-            f.readFully(jpegData);
-        } catch (Exception e) {
-            Log.e(TAG, "Couldn't access final file, did rendering fail?");
-            return false;
-        } finally {
-            if (f != null) {
-                f.close();
-            }
-        }
-
+        // Move it to the gallery
         mSnapManager.prepareNamerUri(3000,1500);
         mOutputUri = mSnapManager.getNamerUri();
         mOutputTitle = mSnapManager.getNamerTitle();
 
         Log.i(TAG, "PicSphere size: " + opts.outWidth + "x" + opts.outHeight);
-        mSnapManager.saveImage(mOutputUri, mOutputTitle, 3000, 1500, 0, jpegData);
+        if (!mSnapManager.saveImageFile(mOutputUri, mOutputTitle, 3000, 1500, 0,
+                new File(jpegPath), StorageMonitor.SHOT_PICSPHERE)) {
+            Log.e(TAG, "Couldn't access final file, did rendering fail?");
+            return false;
+        }
 
         Log.d(TAG, "Enblend... done");
         return true;
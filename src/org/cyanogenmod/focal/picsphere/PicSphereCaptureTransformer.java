@@ -80,6 +80,7 @@ public class PicSphereCaptureTransformer extends CaptureTransformer {
         }
 
         mSnapManager.setBypassProcessing(true);
+        mSnapManager.setIntermediateShot(true);
         mSnapManager.queueSnapshot(true, 0);
         mPicSphereManager.getRenderer().setCamPreviewVisible(false);
 